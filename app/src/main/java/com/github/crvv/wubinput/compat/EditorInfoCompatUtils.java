@@ -27,6 +27,9 @@ public final class EditorInfoCompatUtils {
             EditorInfo.class, "IME_FLAG_FORCE_ASCII");
     private static final Integer OBJ_IME_FLAG_FORCE_ASCII = (Integer) CompatUtils.getFieldValue(
             null /* receiver */, null /* defaultValue */, FIELD_IME_FLAG_FORCE_ASCII);
+    // EditorInfo.IME_FLAG_NO_PERSONALIZED_LEARNING, introduced in API level 26. Older editors
+    // cannot set it, so checking it by value is safe on every version.
+    private static final int IME_FLAG_NO_PERSONALIZED_LEARNING = 0x1000000;
 
     private EditorInfoCompatUtils() {
         // This utility class is not publicly instantiable.
@@ -37,6 +40,14 @@ public final class EditorInfoCompatUtils {
         return (imeOptions & OBJ_IME_FLAG_FORCE_ASCII) != 0;
     }
 
+    /**
+     * @return whether the editor asks not to learn from what is typed in it, like an incognito
+     * tab does.
+     */
+    public static boolean hasFlagNoPersonalizedLearning(final int imeOptions) {
+        return (imeOptions & IME_FLAG_NO_PERSONALIZED_LEARNING) != 0;
+    }
+
     public static String imeActionName(final int imeOptions) {
         final int actionId = imeOptions & EditorInfo.IME_MASK_ACTION;
         switch (actionId) {
@@ -76,6 +87,9 @@ public final class EditorInfoCompatUtils {
         if (hasFlagForceAscii(imeOptions)) {
             flags.append("flagForceAscii|");
         }
+        if (hasFlagNoPersonalizedLearning(imeOptions)) {
+            flags.append("flagNoPersonalizedLearning|");
+        }
         return (action != null) ? flags + action : flags.toString();
     }
 }
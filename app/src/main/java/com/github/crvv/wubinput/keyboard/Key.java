@@ -40,6 +40,9 @@ import com.github.crvv.wubinput.wubi.Constants;
 import com.github.crvv.wubinput.wubi.R;
 import com.github.crvv.wubinput.wubi.utils.StringUtils;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Locale;
 
@@ -403,6 +406,95 @@ public class Key implements Comparable<Key> {
         mEnabled = key.mEnabled;
     }
 
+    /**
+     * Constructor for a key read by {@link #readFrom(DataInputStream)}. The key is enabled and
+     * not pressed.
+     */
+    private Key(final DataInputStream in) throws IOException {
+        mCode = in.readInt();
+        mLabel = KeyboardCacheFile.readString(in);
+        mHintLabel = KeyboardCacheFile.readString(in);
+        mLabelFlags = in.readInt();
+        mIconId = in.readInt();
+        mWidth = in.readInt();
+        mHeight = in.readInt();
+        mX = in.readInt();
+        mY = in.readInt();
+        mHitBox.set(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        final int moreKeysCount = in.readInt();
+        if (moreKeysCount > 0) {
+            mMoreKeys = new MoreKeySpec[moreKeysCount];
+            for (int i = 0; i < moreKeysCount; i++) {
+                mMoreKeys[i] = new MoreKeySpec(in.readInt(), KeyboardCacheFile.readString(in),
+                        KeyboardCacheFile.readString(in), in.readInt());
+            }
+        } else {
+            mMoreKeys = null;
+        }
+        mMoreKeysColumnAndFlags = in.readInt();
+        mBackgroundType = in.readInt();
+        mActionFlags = in.readInt();
+        mKeyVisualAttributes = in.readBoolean() ? KeyVisualAttributes.readFrom(in) : null;
+        if (in.readBoolean()) {
+            mOptionalAttributes = new OptionalAttributes(KeyboardCacheFile.readString(in),
+                    in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        } else {
+            mOptionalAttributes = null;
+        }
+        mHashCode = computeHashCode(this);
+    }
+
+    static Key readFrom(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? new Spacer(in) : new Key(in);
+    }
+
+    /**
+     * Writes what {@link #readFrom(DataInputStream)} reads back. The state of the key, pressed or
+     * enabled, is not written.
+     */
+    void writeTo(final DataOutputStream out) throws IOException {
+        out.writeBoolean(isSpacer());
+        out.writeInt(mCode);
+        KeyboardCacheFile.writeString(out, mLabel);
+        KeyboardCacheFile.writeString(out, mHintLabel);
+        out.writeInt(mLabelFlags);
+        out.writeInt(mIconId);
+        out.writeInt(mWidth);
+        out.writeInt(mHeight);
+        out.writeInt(mX);
+        out.writeInt(mY);
+        out.writeInt(mHitBox.left);
+        out.writeInt(mHitBox.top);
+        out.writeInt(mHitBox.right);
+        out.writeInt(mHitBox.bottom);
+        if (mMoreKeys == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(mMoreKeys.length);
+            for (final MoreKeySpec moreKey : mMoreKeys) {
+                out.writeInt(moreKey.mCode);
+                KeyboardCacheFile.writeString(out, moreKey.mLabel);
+                KeyboardCacheFile.writeString(out, moreKey.mOutputText);
+                out.writeInt(moreKey.mIconId);
+            }
+        }
+        out.writeInt(mMoreKeysColumnAndFlags);
+        out.writeInt(mBackgroundType);
+        out.writeInt(mActionFlags);
+        out.writeBoolean(mKeyVisualAttributes != null);
+        if (mKeyVisualAttributes != null) {
+            mKeyVisualAttributes.writeTo(out);
+        }
+        out.writeBoolean(mOptionalAttributes != null);
+        if (mOptionalAttributes != null) {
+            KeyboardCacheFile.writeString(out, mOptionalAttributes.mOutputText);
+            out.writeInt(mOptionalAttributes.mAltCode);
+            out.writeInt(mOptionalAttributes.mDisabledIconId);
+            out.writeInt(mOptionalAttributes.mVisualInsetsLeft);
+            out.writeInt(mOptionalAttributes.mVisualInsetsRight);
+        }
+    }
+
     private static boolean needsToUpperCase(final int labelFlags, final int keyboardElementId) {
         if ((labelFlags & LABEL_FLAGS_PRESERVE_CASE) != 0) return false;
         switch (keyboardElementId) {
@@ -926,5 +1018,9 @@ public class Key implements Comparable<Key> {
                     null /* hintLabel */, 0 /* labelFlags */, BACKGROUND_TYPE_EMPTY, x, y, width,
                     height, params.mHorizontalGap, params.mVerticalGap);
         }
+
+        Spacer(final DataInputStream in) throws IOException {
+            super(in);
+        }
     }
 }
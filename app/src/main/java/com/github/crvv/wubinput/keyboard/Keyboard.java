@@ -89,6 +89,20 @@ public class Keyboard {
     private final boolean mProximityCharsCorrectionEnabled;
 
     public Keyboard(final KeyboardParams params) {
+        this(params, false /* isRestored */, null /* gridNeighborIndices */);
+    }
+
+    /**
+     * Restores a keyboard read by {@link KeyboardCacheFile}, without computing its proximity grid
+     * again.
+     * @param gridNeighborIndices see {@link ProximityInfo#getGridNeighborIndices()}.
+     */
+    Keyboard(final KeyboardParams params, final int[][] gridNeighborIndices) {
+        this(params, true /* isRestored */, gridNeighborIndices);
+    }
+
+    private Keyboard(final KeyboardParams params, final boolean isRestored,
+            final int[][] gridNeighborIndices) {
         mId = params.mId;
         mThemeId = params.mThemeId;
         mOccupiedHeight = params.mOccupiedHeight;
@@ -108,10 +122,16 @@ public class Keyboard {
         mAltCodeKeysWhileTyping = Collections.unmodifiableList(params.mAltCodeKeysWhileTyping);
         mIconsSet = params.mIconsSet;
 
-        mProximityInfo = new ProximityInfo(params.mId.mLocale.toString(),
-                params.GRID_WIDTH, params.GRID_HEIGHT, mOccupiedWidth, mOccupiedHeight,
-                mMostCommonKeyWidth, mMostCommonKeyHeight, mSortedKeys,
-                params.mTouchPositionCorrection);
+        if (isRestored) {
+            mProximityInfo = new ProximityInfo(params.GRID_WIDTH, params.GRID_HEIGHT,
+                    mOccupiedWidth, mOccupiedHeight, mMostCommonKeyWidth, mSortedKeys,
+                    gridNeighborIndices);
+        } else {
+            mProximityInfo = new ProximityInfo(params.mId.mLocale.toString(),
+                    params.GRID_WIDTH, params.GRID_HEIGHT, mOccupiedWidth, mOccupiedHeight,
+                    mMostCommonKeyWidth, mMostCommonKeyHeight, mSortedKeys,
+                    params.mTouchPositionCorrection);
+        }
         mProximityCharsCorrectionEnabled = params.mProximityCharsCorrectionEnabled;
     }
 
@@ -151,6 +171,10 @@ public class Keyboard {
         return canAssumeNativeHasProximityCharsInfoOfAllKeys || Character.isLetter(code);
     }
 
+    boolean isProximityCharsCorrectionEnabled() {
+        return mProximityCharsCorrectionEnabled;
+    }
+
     public ProximityInfo getProximityInfo() {
         return mProximityInfo;
     }
@@ -0,0 +1,323 @@
+package com.github.crvv.wubinput.keyboard;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Configuration;
+import android.content.res.TypedArray;
+import android.util.Log;
+
+import com.github.crvv.wubinput.keyboard.internal.KeyVisualAttributes;
+import com.github.crvv.wubinput.keyboard.internal.KeyboardParams;
+import com.github.crvv.wubinput.keyboard.internal.KeysCache;
+import com.github.crvv.wubinput.wubi.R;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A keyboard built from XML, kept in a file so that the next process reads it back instead of
+ * parsing the XML again.
+ *
+ * The file holds what the keyboard was built into: its attributes, its keys, the resource ids of
+ * its icons and its proximity grid, and is read in a single read. It is named after a key made
+ * of everything the keyboard depends on: the {@link KeyboardId}, the XML it is built from, the
+ * keyboard theme, the configuration of the resources and the version of the app. The key is
+ * also written at the start of the file and compared when it is read, since names may collide.
+ * The files of an app version live in their own directory; the directories of other versions are
+ * deleted the first time a keyboard is written.
+ */
+final class KeyboardCacheFile {
+    private static final String TAG = KeyboardCacheFile.class.getSimpleName();
+
+    private static final int MAGIC_NUMBER = 0x57554B42; // "WUKB"
+    private static final int VERSION = 1;
+    private static final String DIRECTORY_NAME = "keyboards";
+    private static final String FILE_EXTENSION = ".kbd";
+
+    // The version code and the last update time of the app, or null if they are not known.
+    private static String sAppVersion;
+    // Only used on the thread writing the files.
+    private static boolean sHasDeletedStaleDirectories;
+
+    private final File mFile;
+    private final String mCacheKey;
+
+    private KeyboardCacheFile(final File file, final String cacheKey) {
+        mFile = file;
+        mCacheKey = cacheKey;
+    }
+
+    /**
+     * @param context the context of the keyboard theme.
+     * @return the file of the keyboard, or null if the keyboard cannot be cached.
+     */
+    public static KeyboardCacheFile get(final Context context, final KeyboardId id,
+            final int keyboardXmlId, final boolean proximityCharsCorrectionEnabled,
+            final boolean touchPositionCorrectionDisabled) {
+        final String appVersion = getAppVersion(context);
+        if (appVersion == null) {
+            return null;
+        }
+        final TypedArray keyboardAttr = context.obtainStyledAttributes(
+                null, R.styleable.Keyboard, R.attr.keyboardStyle, R.style.Keyboard);
+        final int themeId = keyboardAttr.getInt(R.styleable.Keyboard_themeId, 0);
+        keyboardAttr.recycle();
+        final Configuration config = context.getResources().getConfiguration();
+        final String cacheKey = appVersion + " " + id
+                + " " + id.mSubtype.getExtraValue()
+                + " actionLabel=" + id.mCustomActionLabel
+                + " xml=" + keyboardXmlId
+                + " theme=" + themeId
+                + " proximityChars=" + proximityCharsCorrectionEnabled
+                + " noTouchCorrection=" + touchPositionCorrectionDisabled
+                + " density=" + config.densityDpi
+                + " fontScale=" + config.fontScale
+                + " screen=" + config.screenWidthDp + "x" + config.screenHeightDp
+                + " orientation=" + config.orientation
+                + " layout=" + config.screenLayout
+                + " uiMode=" + config.uiMode
+                + " locale=" + config.locale;
+        final File directory = new File(new File(context.getCacheDir(), DIRECTORY_NAME),
+                appVersion);
+        return new KeyboardCacheFile(new File(directory,
+                Integer.toHexString(cacheKey.hashCode()) + FILE_EXTENSION), cacheKey);
+    }
+
+    private static synchronized String getAppVersion(final Context context) {
+        if (sAppVersion == null) {
+            try {
+                final PackageInfo info = context.getPackageManager().getPackageInfo(
+                        context.getPackageName(), 0);
+                sAppVersion = info.versionCode + "-" + info.lastUpdateTime;
+            } catch (final NameNotFoundException e) {
+                Log.e(TAG, "Could not find version info.", e);
+            }
+        }
+        return sAppVersion;
+    }
+
+    /**
+     * Reads the keyboard back, in a single read.
+     * @param keysCache the cache to share the keys with other keyboards, or null.
+     * @return the keyboard, or null if it has not been written, or was written for another key.
+     */
+    public Keyboard read(final Context context, final KeyboardId id, final KeysCache keysCache) {
+        if (!mFile.exists()) {
+            return null;
+        }
+        final byte[] bytes;
+        try {
+            bytes = readFully(mFile);
+        } catch (final IOException e) {
+            Log.e(TAG, "Cannot read " + mFile, e);
+            return null;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != MAGIC_NUMBER || in.readInt() != VERSION
+                    || !mCacheKey.equals(in.readUTF())) {
+                Log.i(TAG, "Discarding the keyboard of another key in " + mFile);
+                mFile.delete();
+                return null;
+            }
+            return readKeyboard(in, context, id, keysCache);
+        } catch (final IOException e) {
+            Log.w(TAG, "Discarding the truncated keyboard in " + mFile, e);
+        } catch (final RuntimeException e) {
+            Log.w(TAG, "Discarding the corrupted keyboard in " + mFile, e);
+        }
+        mFile.delete();
+        return null;
+    }
+
+    private static byte[] readFully(final File file) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final byte[] bytes = new byte[(int)file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                final int count = in.read(bytes, offset, bytes.length - offset);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                offset += count;
+            }
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Keyboard readKeyboard(final DataInputStream in, final Context context,
+            final KeyboardId id, final KeysCache keysCache) throws IOException {
+        final KeyboardParams params = new KeyboardParams();
+        params.mId = id;
+        params.mThemeId = in.readInt();
+        params.mOccupiedHeight = in.readInt();
+        params.mOccupiedWidth = in.readInt();
+        params.mBaseHeight = in.readInt();
+        params.mBaseWidth = in.readInt();
+        params.mTopPadding = in.readInt();
+        params.mVerticalGap = in.readInt();
+        params.mMoreKeysTemplate = in.readInt();
+        params.mMaxMoreKeysKeyboardColumn = in.readInt();
+        params.mKeyVisualAttributes = in.readBoolean() ? KeyVisualAttributes.readFrom(in) : null;
+        params.mProximityCharsCorrectionEnabled = in.readBoolean();
+        params.GRID_WIDTH = in.readInt();
+        params.GRID_HEIGHT = in.readInt();
+
+        final int[] iconResourceIds = new int[in.readInt()];
+        for (int i = 0; i < iconResourceIds.length; i++) {
+            iconResourceIds[i] = in.readInt();
+        }
+        params.mIconsSet.loadIcons(context, iconResourceIds);
+
+        // The keys are added like the builder adds them, which finds the shift keys and the keys
+        // with an alternate code again. They were written sorted.
+        params.mKeysCache = keysCache;
+        final int keyCount = in.readInt();
+        for (int i = 0; i < keyCount; i++) {
+            params.onAddKey(Key.readFrom(in));
+        }
+        if (params.mSortedKeys.size() != keyCount) {
+            throw new IOException("Expected " + keyCount + " keys, got "
+                    + params.mSortedKeys.size());
+        }
+        params.mMostCommonKeyHeight = in.readInt();
+        params.mMostCommonKeyWidth = in.readInt();
+
+        final int[][] gridNeighborIndices;
+        if (in.readBoolean()) {
+            gridNeighborIndices = new int[params.GRID_WIDTH * params.GRID_HEIGHT][];
+            for (int i = 0; i < gridNeighborIndices.length; i++) {
+                final int[] indices = new int[in.readShort()];
+                for (int j = 0; j < indices.length; j++) {
+                    indices[j] = in.readShort();
+                }
+                gridNeighborIndices[i] = indices;
+            }
+        } else {
+            gridNeighborIndices = null;
+        }
+        return new Keyboard(params, gridNeighborIndices);
+    }
+
+    /**
+     * Writes the keyboard, replacing the file if there is one. Does I/O; not to be called on the
+     * UI thread.
+     */
+    public void write(final Keyboard keyboard) {
+        final File directory = mFile.getParentFile();
+        if (!sHasDeletedStaleDirectories) {
+            sHasDeletedStaleDirectories = true;
+            deleteStaleDirectories(directory);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Cannot create " + directory);
+            return;
+        }
+        final File tempFile = new File(mFile.getPath() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC_NUMBER);
+                out.writeInt(VERSION);
+                out.writeUTF(mCacheKey);
+                writeKeyboard(out, keyboard);
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(mFile)) {
+                throw new IOException("Cannot rename " + tempFile);
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Cannot write " + mFile, e);
+            tempFile.delete();
+        }
+    }
+
+    private static void writeKeyboard(final DataOutputStream out, final Keyboard keyboard)
+            throws IOException {
+        out.writeInt(keyboard.mThemeId);
+        out.writeInt(keyboard.mOccupiedHeight);
+        out.writeInt(keyboard.mOccupiedWidth);
+        out.writeInt(keyboard.mBaseHeight);
+        out.writeInt(keyboard.mBaseWidth);
+        out.writeInt(keyboard.mTopPadding);
+        out.writeInt(keyboard.mVerticalGap);
+        out.writeInt(keyboard.mMoreKeysTemplate);
+        out.writeInt(keyboard.mMaxMoreKeysKeyboardColumn);
+        out.writeBoolean(keyboard.mKeyVisualAttributes != null);
+        if (keyboard.mKeyVisualAttributes != null) {
+            keyboard.mKeyVisualAttributes.writeTo(out);
+        }
+        out.writeBoolean(keyboard.isProximityCharsCorrectionEnabled());
+        final ProximityInfo proximityInfo = keyboard.getProximityInfo();
+        out.writeInt(proximityInfo.getGridWidth());
+        out.writeInt(proximityInfo.getGridHeight());
+
+        final int[] iconResourceIds = keyboard.mIconsSet.getIconResourceIds();
+        out.writeInt(iconResourceIds.length);
+        for (final int iconResourceId : iconResourceIds) {
+            out.writeInt(iconResourceId);
+        }
+
+        final List<Key> sortedKeys = keyboard.getSortedKeys();
+        out.writeInt(sortedKeys.size());
+        for (final Key key : sortedKeys) {
+            key.writeTo(out);
+        }
+        out.writeInt(keyboard.mMostCommonKeyHeight);
+        out.writeInt(keyboard.mMostCommonKeyWidth);
+
+        final int[][] gridNeighborIndices = proximityInfo.getGridNeighborIndices();
+        out.writeBoolean(gridNeighborIndices != null);
+        if (gridNeighborIndices != null) {
+            for (final int[] indices : gridNeighborIndices) {
+                out.writeShort(indices.length);
+                for (final int index : indices) {
+                    out.writeShort(index);
+                }
+            }
+        }
+    }
+
+    private static void deleteStaleDirectories(final File directory) {
+        final File[] siblings = directory.getParentFile().listFiles();
+        if (siblings == null) {
+            return;
+        }
+        for (final File sibling : siblings) {
+            if (sibling.equals(directory)) {
+                continue;
+            }
+            final File[] files = sibling.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    file.delete();
+                }
+            }
+            sibling.delete();
+        }
+    }
+
+    static void writeString(final DataOutputStream out, final String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    static String readString(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -39,6 +39,7 @@ import com.github.crvv.wubinput.wubi.InputAttributes;
 import com.github.crvv.wubinput.wubi.R;
 import com.github.crvv.wubinput.wubi.SubtypeSwitcher;
 import com.github.crvv.wubinput.wubi.define.DebugFlags;
+import com.github.crvv.wubinput.wubi.utils.ExecutorUtils;
 import com.github.crvv.wubinput.wubi.utils.InputTypeUtils;
 import com.github.crvv.wubinput.wubi.utils.ScriptUtils;
 import com.github.crvv.wubinput.wubi.utils.SubtypeLocaleUtils;
@@ -50,6 +51,11 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.lang.ref.SoftReference;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class represents a set of keyboard layouts. Each of them represents a different keyboard
@@ -82,6 +88,33 @@ public final class KeyboardLayoutSet {
     private static final HashMap<KeyboardId, SoftReference<Keyboard>> sKeyboardCache =
             new HashMap<>();
     private static final KeysCache sKeysCache = new KeysCache();
+    // The keyboards built from XML since the keyboards were last written to their cache files.
+    // They are written by the background thread that prebuilds the keyboards.
+    private static final HashMap<Keyboard, KeyboardCacheFile> sKeyboardsToWrite = new HashMap<>();
+    // The keyboards being built, which a thread that needs one of them waits for instead of
+    // building it again. A keyboard is built outside of the lock, so that getting a cached
+    // keyboard never waits for another one to be built.
+    private static final HashMap<KeyboardId, FutureTask<Keyboard>> sKeyboardsBeingBuilt =
+            new HashMap<>();
+    // Incremented when the cache is cleared, so that the keyboards being built are not put in it.
+    private static int sKeyboardCacheGeneration;
+    // The caches above are synchronized on sKeyboardCache, as keyboards are also built in the
+    // background. sKeysCache is synchronized on itself.
+
+    // The keyboards built ahead of time, in the order they are built. A layout set in a mode
+    // that has no such element gets its phone or number keyboard instead.
+    private static final int[] PREBUILT_ELEMENT_IDS = {
+            KeyboardId.ELEMENT_ALPHABET,
+            KeyboardId.ELEMENT_ALPHABET_AUTOMATIC_SHIFTED,
+            KeyboardId.ELEMENT_ALPHABET_MANUAL_SHIFTED,
+            KeyboardId.ELEMENT_SYMBOLS,
+            KeyboardId.ELEMENT_SYMBOLS_SHIFTED,
+            KeyboardId.ELEMENT_ALPHABET_SHIFT_LOCKED,
+            KeyboardId.ELEMENT_ALPHABET_SHIFT_LOCK_SHIFTED,
+    };
+    // Changed when the cache is cleared or another layout set starts prebuilding, to stop the
+    // keyboards being prebuilt for a former one.
+    private static final AtomicInteger sPrebuildGeneration = new AtomicInteger();
 
     @SuppressWarnings("serial")
     public static final class KeyboardLayoutSetException extends RuntimeException {
@@ -128,8 +161,15 @@ public final class KeyboardLayoutSet {
     }
 
     private static void clearKeyboardCache() {
-        sKeyboardCache.clear();
-        sKeysCache.clear();
+        synchronized (sKeyboardCache) {
+            sPrebuildGeneration.incrementAndGet();
+            sKeyboardCacheGeneration++;
+            sKeyboardCache.clear();
+            sKeysCache.clear();
+            sKeyboardsToWrite.clear();
+            // The keyboards still being built are not put in the cache.
+            sKeyboardsBeingBuilt.clear();
+        }
     }
 
     KeyboardLayoutSet(final Context context, final Params params) {
@@ -177,28 +217,170 @@ public final class KeyboardLayoutSet {
         }
     }
 
+    /**
+     * Builds on a background thread the keyboards this layout set may switch to, so that
+     * switching does not parse their XML on the UI thread, then writes the keyboards built from
+     * XML to their cache files. It stops when the cache is cleared or another layout set calls
+     * this method. The UI thread waits only for a keyboard it needs that is being built here,
+     * and gets it rather than building it again.
+     */
+    public void prebuildKeyboardsInBackground() {
+        final int generation = sPrebuildGeneration.incrementAndGet();
+        ExecutorUtils.KEYBOARD_BUILD.executeDroppable(new Runnable() {
+            @Override
+            public void run() {
+                for (final int elementId : PREBUILT_ELEMENT_IDS) {
+                    if (!prebuildKeyboard(elementId, generation)) {
+                        return;
+                    }
+                }
+                writeKeyboardCacheFiles();
+            }
+        });
+    }
+
+    private static void writeKeyboardCacheFiles() {
+        final HashMap<Keyboard, KeyboardCacheFile> keyboardsToWrite;
+        synchronized (sKeyboardCache) {
+            if (sKeyboardsToWrite.isEmpty()) {
+                return;
+            }
+            keyboardsToWrite = new HashMap<>(sKeyboardsToWrite);
+            sKeyboardsToWrite.clear();
+        }
+        // Outside of the lock, not to keep the UI thread waiting for the disk.
+        for (final Map.Entry<Keyboard, KeyboardCacheFile> entry : keyboardsToWrite.entrySet()) {
+            entry.getValue().write(entry.getKey());
+        }
+    }
+
+    private boolean prebuildKeyboard(final int elementId, final int generation) {
+        // A keyboard built after the cache is cleared is not put in it, so checking first is
+        // enough.
+        if (sPrebuildGeneration.get() != generation) {
+            return false;
+        }
+        try {
+            getKeyboard(elementId);
+        } catch (final KeyboardLayoutSetException e) {
+            // Already logged. The UI thread will fail the same way if it needs this keyboard.
+        }
+        return true;
+    }
+
+    /**
+     * Returns the keyboard from the cache, or builds it. If another thread is building it, waits
+     * for that thread instead.
+     */
     private Keyboard getKeyboard(final ElementParams elementParams, final KeyboardId id) {
-        final SoftReference<Keyboard> ref = sKeyboardCache.get(id);
-        final Keyboard cachedKeyboard = (ref == null) ? null : ref.get();
-        if (cachedKeyboard != null) {
-            if (DEBUG_CACHE) {
-                Log.d(TAG, "keyboard cache size=" + sKeyboardCache.size() + ": HIT  id=" + id);
+        final FutureTask<Keyboard> task;
+        final boolean isBuiltByThisThread;
+        synchronized (sKeyboardCache) {
+            final SoftReference<Keyboard> ref = sKeyboardCache.get(id);
+            final Keyboard cachedKeyboard = (ref == null) ? null : ref.get();
+            if (cachedKeyboard != null) {
+                if (DEBUG_CACHE) {
+                    Log.d(TAG, "keyboard cache size=" + sKeyboardCache.size() + ": HIT  id="
+                            + id);
+                }
+                return cachedKeyboard;
+            }
+            final FutureTask<Keyboard> taskBeingRun = sKeyboardsBeingBuilt.get(id);
+            isBuiltByThisThread = (taskBeingRun == null);
+            if (isBuiltByThisThread) {
+                final int cacheGeneration = sKeyboardCacheGeneration;
+                task = new FutureTask<>(new Callable<Keyboard>() {
+                    @Override
+                    public Keyboard call() {
+                        return buildKeyboard(elementParams, id, cacheGeneration, (ref != null));
+                    }
+                });
+                sKeyboardsBeingBuilt.put(id, task);
+            } else {
+                task = taskBeingRun;
             }
-            return cachedKeyboard;
         }
+        if (isBuiltByThisThread) {
+            task.run();
+            synchronized (sKeyboardCache) {
+                // Only still there if the build failed, so that the next call tries again.
+                if (sKeyboardsBeingBuilt.get(id) == task) {
+                    sKeyboardsBeingBuilt.remove(id);
+                }
+            }
+        }
+        return getBuiltKeyboard(task);
+    }
 
-        final KeyboardBuilder<KeyboardParams> builder =
-                new KeyboardBuilder<>(mContext, new KeyboardParams());
-        if (id.isAlphabetKeyboard()) {
-            builder.setAutoGenerate(sKeysCache);
+    private static Keyboard getBuiltKeyboard(final FutureTask<Keyboard> task) {
+        boolean isInterrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (final InterruptedException e) {
+                    // The keyboard is needed anyway.
+                    isInterrupted = true;
+                }
+            }
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
-        final int keyboardXmlId = elementParams.mKeyboardXmlId;
-        builder.load(keyboardXmlId, id);
-        if (mParams.mDisableTouchPositionCorrectionDataForTest) {
-            builder.disableTouchPositionCorrectionDataForTest();
+    }
+
+    // Called outside of the lock, which is only taken to put the keyboard in the caches.
+    private Keyboard buildKeyboard(final ElementParams elementParams, final KeyboardId id,
+            final int cacheGeneration, final boolean wasGarbageCollected) {
+        final KeyboardCacheFile cacheFile = KeyboardCacheFile.get(mContext, id,
+                elementParams.mKeyboardXmlId, elementParams.mProximityCharsCorrectionEnabled,
+                mParams.mDisableTouchPositionCorrectionDataForTest);
+        final KeysCache keysCache = id.isAlphabetKeyboard() ? sKeysCache : null;
+        Keyboard keyboard = (cacheFile == null) ? null : cacheFile.read(mContext, id, keysCache);
+        final boolean isReadFromCacheFile = (keyboard != null);
+        if (keyboard == null) {
+            final KeyboardBuilder<KeyboardParams> builder =
+                    new KeyboardBuilder<>(mContext, new KeyboardParams());
+            if (keysCache != null) {
+                builder.setAutoGenerate(keysCache);
+            }
+            final int keyboardXmlId = elementParams.mKeyboardXmlId;
+            builder.load(keyboardXmlId, id);
+            if (mParams.mDisableTouchPositionCorrectionDataForTest) {
+                builder.disableTouchPositionCorrectionDataForTest();
+            }
+            builder.setProximityCharsCorrectionEnabled(
+                    elementParams.mProximityCharsCorrectionEnabled);
+            keyboard = builder.build();
+        }
+        synchronized (sKeyboardCache) {
+            if (sKeyboardCacheGeneration == cacheGeneration) {
+                sKeyboardsBeingBuilt.remove(id);
+                putKeyboardLocked(id, keyboard, isReadFromCacheFile ? null : cacheFile,
+                        wasGarbageCollected, isReadFromCacheFile);
+            }
+            // Otherwise the cache was cleared while the keyboard was built, and it is only
+            // returned to the threads waiting for it.
+        }
+        return keyboard;
+    }
+
+    private void putKeyboardLocked(final KeyboardId id, final Keyboard keyboard,
+            final KeyboardCacheFile cacheFileToWrite, final boolean wasGarbageCollected,
+            final boolean isReadFromCacheFile) {
+        if (cacheFileToWrite != null) {
+            sKeyboardsToWrite.put(keyboard, cacheFileToWrite);
         }
-        builder.setProximityCharsCorrectionEnabled(elementParams.mProximityCharsCorrectionEnabled);
-        final Keyboard keyboard = builder.build();
         sKeyboardCache.put(id, new SoftReference<>(keyboard));
         if ((id.mElementId == KeyboardId.ELEMENT_ALPHABET
                 || id.mElementId == KeyboardId.ELEMENT_ALPHABET_AUTOMATIC_SHIFTED)
@@ -214,9 +396,9 @@ public final class KeyboardLayoutSet {
         }
         if (DEBUG_CACHE) {
             Log.d(TAG, "keyboard cache size=" + sKeyboardCache.size() + ": "
-                    + ((ref == null) ? "LOAD" : "GCed") + " id=" + id);
+                    + (wasGarbageCollected ? "GCed" : "LOAD")
+                    + (isReadFromCacheFile ? " FILE" : " XML") + " id=" + id);
         }
-        return keyboard;
     }
 
     public int getScriptId() {
@@ -18,27 +18,32 @@ package com.github.crvv.wubinput.keyboard;
 
 import android.content.Context;
 import android.content.res.TypedArray;
-import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
+import android.graphics.Picture;
+import android.graphics.PixelFormat;
 import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.graphics.Region;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.NinePatchDrawable;
+import android.os.Build;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.view.View;
 
 import com.github.crvv.wubinput.keyboard.internal.KeyDrawParams;
+import com.github.crvv.wubinput.keyboard.internal.KeyLabelAtlas;
 import com.github.crvv.wubinput.keyboard.internal.KeyVisualAttributes;
+import com.github.crvv.wubinput.keyboard.internal.OffscreenBuffer;
 import com.github.crvv.wubinput.wubi.Constants;
 import com.github.crvv.wubinput.wubi.R;
 import com.github.crvv.wubinput.wubi.utils.TypefaceUtils;
 
+import java.util.HashMap;
 import java.util.HashSet;
 
 /**
@@ -108,14 +113,21 @@ public class KeyboardView extends View {
     private final HashSet<Key> mInvalidatedKeys = new HashSet<>();
     /** The working rectangle variable */
     private final Rect mWorkingRect = new Rect();
-    /** The keyboard bitmap buffer for faster updates */
     /** The clip region to draw keys */
     private final Region mClipRegion = new Region();
-    private Bitmap mOffscreenBuffer;
-    /** The canvas for the above mutable keyboard bitmap */
-    private final Canvas mOffscreenCanvas = new Canvas();
+    /** The keyboard bitmap buffer for faster updates */
+    private final OffscreenBuffer mOffscreenBuffer;
     private final Paint mPaint = new Paint();
     private final Paint.FontMetrics mFontMetrics = new Paint.FontMetrics();
+    // A hardware accelerated canvas can only draw a {@link Picture} from API 23.
+    private static final boolean RETAINS_KEY_PICTURES =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    /** What each key drew when it was last invalidated, replayed on hardware redraws */
+    private final HashMap<Key, Picture> mKeyPictures = new HashMap<>();
+    private boolean mIsRecordingKeyPicture;
+    /** The key labels rendered once, copied rather than drawn as text */
+    private final KeyLabelAtlas mLabelAtlas = new KeyLabelAtlas();
+
     public KeyboardView(final Context context, final AttributeSet attrs) {
         this(context, attrs, R.attr.keyboardViewStyle);
     }
@@ -156,6 +168,8 @@ public class KeyboardView extends View {
         mKeyVisualAttributes = KeyVisualAttributes.newInstance(keyAttr);
         keyAttr.recycle();
 
+        mOffscreenBuffer = new OffscreenBuffer(
+                context.getResources().getInteger(R.integer.config_offscreen_buffer_policy));
         mPaint.setAntiAlias(true);
     }
 
@@ -187,6 +201,9 @@ public class KeyboardView extends View {
         final int keyHeight = keyboard.mMostCommonKeyHeight - keyboard.mVerticalGap;
         mKeyDrawParams.updateParams(keyHeight, mKeyVisualAttributes);
         mKeyDrawParams.updateParams(keyHeight, keyboard.mKeyVisualAttributes);
+        // The labels of a keyboard fit in half its area, which the atlas grows to at most.
+        // Resizing the keyboard empties the atlas.
+        mLabelAtlas.reset(keyboard.mOccupiedWidth, keyboard.mOccupiedHeight / 2);
         invalidateAllKeys();
         requestLayout();
     }
@@ -224,59 +241,41 @@ public class KeyboardView extends View {
     protected void onDraw(final Canvas canvas) {
         super.onDraw(canvas);
         if (canvas.isHardwareAccelerated()) {
-            onDrawKeyboard(canvas);
-            return;
-        }
-
-        final boolean bufferNeedsUpdates = mInvalidateAllKeys || !mInvalidatedKeys.isEmpty();
-        if (bufferNeedsUpdates || mOffscreenBuffer == null) {
-            if (maybeAllocateOffscreenBuffer()) {
-                mInvalidateAllKeys = true;
-                // TODO: Stop using the offscreen canvas even when in software rendering
-                mOffscreenCanvas.setBitmap(mOffscreenBuffer);
+            if (RETAINS_KEY_PICTURES) {
+                onDrawRetainedKeyboard(canvas);
+            } else {
+                // TODO: Confirm if it's really required to draw all keys when hardware
+                // acceleration is on.
+                onDrawKeyboard(canvas, true /* drawAllKeys */, false /* isOffscreen */,
+                        0 /* top */, getHeight() /* bottom */);
             }
-            onDrawKeyboard(mOffscreenCanvas);
-        }
-        canvas.drawBitmap(mOffscreenBuffer, 0.0f, 0.0f, null);
-    }
-
-    private boolean maybeAllocateOffscreenBuffer() {
-        final int width = getWidth();
-        final int height = getHeight();
-        if (width == 0 || height == 0) {
-            return false;
-        }
-        if (mOffscreenBuffer != null && mOffscreenBuffer.getWidth() == width
-                && mOffscreenBuffer.getHeight() == height) {
-            return false;
-        }
-        freeOffscreenBuffer();
-        mOffscreenBuffer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        return true;
-    }
-
-    private void freeOffscreenBuffer() {
-        mOffscreenCanvas.setBitmap(null);
-        mOffscreenCanvas.setMatrix(null);
-        if (mOffscreenBuffer != null) {
-            mOffscreenBuffer.recycle();
-            mOffscreenBuffer = null;
+        } else if (!mOffscreenBuffer.isEnabled()) {
+            // The background is already drawn, and the canvas is clipped to the dirty area.
+            onDrawKeyboard(canvas, true /* drawAllKeys */, false /* isOffscreen */,
+                    0 /* top */, getHeight() /* bottom */);
+        } else {
+            final boolean bufferNeedsUpdates = mInvalidateAllKeys || !mInvalidatedKeys.isEmpty();
+            if (bufferNeedsUpdates || !mOffscreenBuffer.isAllocated()) {
+                final Drawable background = getBackground();
+                if (mOffscreenBuffer.allocate(getWidth(), getHeight(), background != null
+                        && background.getOpacity() == PixelFormat.OPAQUE)) {
+                    mInvalidateAllKeys = true;
+                }
+                onDrawOffscreenBuffer();
+            }
+            mOffscreenBuffer.draw(canvas);
         }
+        mInvalidatedKeys.clear();
+        mInvalidateAllKeys = false;
     }
 
-    private void onDrawKeyboard(final Canvas canvas) {
-        if (mKeyboard == null) return;
-
-        final int width = getWidth();
-        final int height = getHeight();
-        final Paint paint = mPaint;
+    private void onDrawOffscreenBuffer() {
+        if (mKeyboard == null || !mOffscreenBuffer.isAllocated()) return;
 
-        // Calculate clip region and set.
+        // Calculate clip region.
         final boolean drawAllKeys = mInvalidateAllKeys || mInvalidatedKeys.isEmpty();
-        final boolean isHardwareAccelerated = canvas.isHardwareAccelerated();
-        // TODO: Confirm if it's really required to draw all keys when hardware acceleration is on.
-        if (drawAllKeys || isHardwareAccelerated) {
-            mClipRegion.set(0, 0, width, height);
+        if (drawAllKeys) {
+            mClipRegion.set(0, 0, getWidth(), getHeight());
         } else {
             mClipRegion.setEmpty();
             for (final Key key : mInvalidatedKeys) {
@@ -288,8 +287,29 @@ public class KeyboardView extends View {
                 }
             }
         }
-        if (!isHardwareAccelerated) {
-            canvas.clipRegion(mClipRegion, Region.Op.REPLACE);
+        // Only the bands of the buffer crossing the clip region are drawn again, each with the
+        // keys crossing it.
+        for (int i = 0; i < mOffscreenBuffer.getTileCount(); i++) {
+            final Canvas tileCanvas = mOffscreenBuffer.beginTile(i, mClipRegion);
+            if (tileCanvas != null) {
+                onDrawKeyboard(tileCanvas, drawAllKeys, true /* isOffscreen */,
+                        mOffscreenBuffer.getTileTop(i), mOffscreenBuffer.getTileBottom(i));
+                mOffscreenBuffer.endTile();
+            }
+        }
+    }
+
+    /**
+     * @param top the top of the band to draw, in the coordinates of the view. Keys that do not
+     * cross the band are skipped.
+     * @param bottom the bottom of the band to draw, in the coordinates of the view.
+     */
+    private void onDrawKeyboard(final Canvas canvas, final boolean drawAllKeys,
+            final boolean isOffscreen, final int top, final int bottom) {
+        if (mKeyboard == null) return;
+        final Paint paint = mPaint;
+
+        if (isOffscreen) {
             // Draw keyboard background.
             canvas.drawColor(Color.BLACK, PorterDuff.Mode.CLEAR);
             final Drawable background = getBackground();
@@ -298,30 +318,83 @@ public class KeyboardView extends View {
             }
         }
 
-        // TODO: Confirm if it's really required to draw all keys when hardware acceleration is on.
-        if (drawAllKeys || isHardwareAccelerated) {
+        if (drawAllKeys) {
             // Draw all keys.
             for (final Key key : mKeyboard.getSortedKeys()) {
-                onDrawKey(key, canvas, paint);
+                if (isKeyInBand(key, top, bottom)) {
+                    onDrawKey(key, canvas, paint);
+                }
             }
         } else {
             // Draw invalidated keys.
             for (final Key key : mInvalidatedKeys) {
-                if (mKeyboard.hasKey(key)) {
+                if (mKeyboard.hasKey(key) && isKeyInBand(key, top, bottom)) {
                     onDrawKey(key, canvas, paint);
                 }
             }
         }
+    }
 
-        mInvalidatedKeys.clear();
-        mInvalidateAllKeys = false;
+    // Whether the key, with the padding of its background, crosses the band between top and
+    // bottom, in the coordinates of the view.
+    private boolean isKeyInBand(final Key key, final int top, final int bottom) {
+        final int keyTop = key.getY() + getPaddingTop();
+        return keyTop + key.getHeight() + mKeyBackgroundPadding.bottom > top
+                && keyTop - mKeyBackgroundPadding.top < bottom;
+    }
+
+    /**
+     * Draws the keyboard on a hardware accelerated canvas. The view's display list is recorded
+     * again on every invalidate, even for a single key, so each key is recorded into its own
+     * {@link Picture} and only the invalidated keys are drawn again. The others replay what
+     * they recorded, without computing their backgrounds and labels.
+     */
+    private void onDrawRetainedKeyboard(final Canvas canvas) {
+        if (mKeyboard == null) return;
+        if (mInvalidateAllKeys) {
+            // The keys may belong to another keyboard now.
+            mKeyPictures.clear();
+        }
+        final Rect padding = mKeyBackgroundPadding;
+        for (final Key key : mKeyboard.getSortedKeys()) {
+            Picture picture = mKeyPictures.get(key);
+            if (picture == null) {
+                picture = new Picture();
+                mKeyPictures.put(key, picture);
+                recordKeyPicture(key, picture);
+            } else if (mInvalidatedKeys.contains(key)) {
+                recordKeyPicture(key, picture);
+            }
+            final int x = key.getDrawX() + getPaddingLeft() - padding.left;
+            final int y = key.getY() + getPaddingTop() - padding.top;
+            canvas.translate(x, y);
+            canvas.drawPicture(picture);
+            canvas.translate(-x, -y);
+        }
+    }
+
+    private void recordKeyPicture(final Key key, final Picture picture) {
+        // The background is drawn over the padding around the key.
+        final Rect padding = mKeyBackgroundPadding;
+        final Canvas canvas = picture.beginRecording(
+                key.getDrawWidth() + padding.left + padding.right,
+                key.getHeight() + padding.top + padding.bottom);
+        canvas.translate(padding.left, padding.top);
+        mIsRecordingKeyPicture = true;
+        onDrawKeyAtOrigin(key, canvas, mPaint);
+        mIsRecordingKeyPicture = false;
+        picture.endRecording();
     }
 
     private void onDrawKey(final Key key, final Canvas canvas, final Paint paint) {
         final int keyDrawX = key.getDrawX() + getPaddingLeft();
         final int keyDrawY = key.getY() + getPaddingTop();
         canvas.translate(keyDrawX, keyDrawY);
+        onDrawKeyAtOrigin(key, canvas, paint);
+        canvas.translate(-keyDrawX, -keyDrawY);
+    }
 
+    private void onDrawKeyAtOrigin(final Key key, final Canvas canvas, final Paint paint) {
         final int keyHeight = mKeyboard.mMostCommonKeyHeight - mKeyboard.mVerticalGap;
         final KeyVisualAttributes attr = key.getVisualAttributes();
         final KeyDrawParams params = mKeyDrawParams.mayCloneAndUpdateParams(keyHeight, attr);
@@ -333,8 +406,6 @@ public class KeyboardView extends View {
             onDrawKeyBackground(key, canvas, background);
         }
         onDrawKeyTopVisuals(key, canvas, paint, params);
-
-        canvas.translate(-keyDrawX, -keyDrawY);
     }
 
     // Draw key background.
@@ -426,7 +497,7 @@ public class KeyboardView extends View {
                 paint.clearShadowLayer();
             }
             blendAlpha(paint, params.mAnimAlpha);
-            canvas.drawText(label, 0, label.length(), labelX, labelBaseline, paint);
+            drawLabel(canvas, label, labelX, labelBaseline, paint);
             // Turn off drop shadow and reset x-scale.
             paint.clearShadowLayer();
             paint.setTextScaleX(1.0f);
@@ -469,8 +540,7 @@ public class KeyboardView extends View {
                 paint.setTextAlign(Align.CENTER);
             }
             final float adjustmentY = params.mHintLabelVerticalAdjustment * labelCharHeight;
-            canvas.drawText(
-                    hintLabel, 0, hintLabel.length(), hintX, hintBaseline + adjustmentY, paint);
+            drawLabel(canvas, hintLabel, hintX, hintBaseline + adjustmentY, paint);
         }
 
         // Draw key icon.
@@ -513,7 +583,17 @@ public class KeyboardView extends View {
         final float hintX = keyWidth - mKeyHintLetterPadding
                 - TypefaceUtils.getReferenceCharWidth(paint) / 2.0f;
         final float hintY = keyHeight - mKeyPopupHintLetterPadding;
-        canvas.drawText(mKeyPopupHintLetter, hintX, hintY, paint);
+        drawLabel(canvas, mKeyPopupHintLetter, hintX, hintY, paint);
+    }
+
+    private void drawLabel(final Canvas canvas, final String label, final float x, final float y,
+            final Paint paint) {
+        // A picture would keep a copy of the atlas, which more labels are still drawn into.
+        if (mKeyTextShadowRadius > 0.0f || mIsRecordingKeyPicture) {
+            canvas.drawText(label, 0, label.length(), x, y, paint);
+        } else {
+            mLabelAtlas.drawText(canvas, label, x, y, paint);
+        }
     }
 
     protected static void drawIcon(final Canvas canvas, final Drawable icon, final int x,
@@ -540,8 +620,8 @@ public class KeyboardView extends View {
 
     /**
      * Requests a redraw of the entire keyboard. Calling {@link #invalidate} is not sufficient
-     * because the keyboard renders the keys to an off-screen buffer and an invalidate() only
-     * draws the cached buffer.
+     * because the keyboard renders the keys to an off-screen buffer, or to a picture per key,
+     * and an invalidate() only draws what was cached.
      * @see #invalidateKey(Key)
      */
     public void invalidateAllKeys() {
@@ -569,10 +649,31 @@ public class KeyboardView extends View {
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
-        freeOffscreenBuffer();
+        mOffscreenBuffer.release();
+        mKeyPictures.clear();
+        mLabelAtlas.release();
+    }
+
+    /**
+     * Releases the off-screen buffer if its policy does not keep it while the keyboard is
+     * hidden. It is allocated again on the next draw.
+     */
+    public void onWindowHidden() {
+        if (mOffscreenBuffer.isReleasedWhenHidden()) {
+            mOffscreenBuffer.release();
+        }
+    }
+
+    /**
+     * @return the bytes held by the off-screen buffer of this view.
+     */
+    public long getOffscreenBufferBytesHeld() {
+        return mOffscreenBuffer.getBytesHeld();
     }
 
     public void deallocateMemory() {
-        freeOffscreenBuffer();
+        mOffscreenBuffer.release();
+        mKeyPictures.clear();
+        mLabelAtlas.release();
     }
 }
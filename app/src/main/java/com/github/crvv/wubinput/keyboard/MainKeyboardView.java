@@ -28,6 +28,7 @@ import android.graphics.Paint.Align;
 import android.graphics.Typeface;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Display;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
@@ -48,6 +49,7 @@ import com.github.crvv.wubinput.keyboard.internal.KeyPreviewView;
 import com.github.crvv.wubinput.keyboard.internal.LanguageOnSpacebarHelper;
 import com.github.crvv.wubinput.keyboard.internal.MoreKeySpec;
 import com.github.crvv.wubinput.keyboard.internal.NonDistinctMultitouchHelper;
+import com.github.crvv.wubinput.keyboard.internal.PerformanceHudDrawingPreview;
 import com.github.crvv.wubinput.keyboard.internal.SlidingKeyInputDrawingPreview;
 import com.github.crvv.wubinput.keyboard.internal.TimerHandler;
 import com.github.crvv.wubinput.wubi.Constants;
@@ -137,6 +139,8 @@ public final class MainKeyboardView extends KeyboardView implements PointerTrack
     private final GestureFloatingTextDrawingPreview mGestureFloatingTextDrawingPreview;
     private final GestureTrailsDrawingPreview mGestureTrailsDrawingPreview;
     private final SlidingKeyInputDrawingPreview mSlidingKeyInputDrawingPreview;
+    private final PerformanceHudDrawingPreview mPerformanceHudDrawingPreview;
+    private static final float PERFORMANCE_HUD_TEXT_SIZE_DP = 12.0f;
 
     // Key preview
     private final KeyPreviewDrawParams mKeyPreviewDrawParams;
@@ -245,6 +249,10 @@ public final class MainKeyboardView extends KeyboardView implements PointerTrack
 
         mSlidingKeyInputDrawingPreview = new SlidingKeyInputDrawingPreview(mainKeyboardViewAttr);
         mSlidingKeyInputDrawingPreview.setDrawingView(mDrawingPreviewPlacerView);
+
+        mPerformanceHudDrawingPreview = new PerformanceHudDrawingPreview(
+                PERFORMANCE_HUD_TEXT_SIZE_DP * getResources().getDisplayMetrics().density);
+        mPerformanceHudDrawingPreview.setDrawingView(mDrawingPreviewPlacerView);
         mainKeyboardViewAttr.recycle();
 
         final LayoutInflater inflater = LayoutInflater.from(getContext());
@@ -444,18 +452,21 @@ public final class MainKeyboardView extends KeyboardView implements PointerTrack
         getLocationInWindow(mOriginCoords);
         mKeyPreviewChoreographer.placeAndShowKeyPreview(key, keyboard.mIconsSet, mKeyDrawParams,
                 getWidth(), mOriginCoords, mDrawingPreviewPlacerView, isHardwareAccelerated());
+        mPerformanceHudDrawingPreview.onKeyPreviewShown();
     }
 
     // Implements {@link TimerHandler.Callbacks} method.
     @Override
     public void dismissKeyPreviewWithoutDelay(final Key key) {
         mKeyPreviewChoreographer.dismissKeyPreview(key, false /* withAnimation */);
+        mPerformanceHudDrawingPreview.onKeyPreviewDismissed();
         // To redraw key top letter.
         invalidateKey(key);
     }
 
     @Override
     public void dismissKeyPreview(final Key key) {
+        mPerformanceHudDrawingPreview.onKeyPreviewDismissed();
         if (!isHardwareAccelerated()) {
             // TODO: Implement preference option to control key preview method and duration.
             mDrawingHandler.dismissKeyPreview(mKeyPreviewDrawParams.getLingerTimeout(), key);
@@ -468,6 +479,25 @@ public final class MainKeyboardView extends KeyboardView implements PointerTrack
         mSlidingKeyInputDrawingPreview.setPreviewEnabled(enabled);
     }
 
+    public void setPerformanceHudEnabled(final boolean enabled) {
+        mPerformanceHudDrawingPreview.setPreviewEnabled(enabled);
+        if (enabled) {
+            final Display display = getDisplay();
+            if (display != null) {
+                mPerformanceHudDrawingPreview.setRefreshRate(display.getRefreshRate());
+            }
+        }
+    }
+
+    /**
+     * Redraws the performance counters, if they are shown.
+     * @param pendingRequestCount the number of requests waiting on the input logic thread.
+     */
+    public void updatePerformanceHud(final int pendingRequestCount) {
+        locatePreviewPlacerView();
+        mPerformanceHudDrawingPreview.update(pendingRequestCount);
+    }
+
     @Override
     public void showSlidingKeyInputPreview(final PointerTracker tracker) {
         locatePreviewPlacerView();
@@ -38,6 +38,7 @@ import com.github.crvv.wubinput.wubi.define.DebugFlags;
 import com.github.crvv.wubinput.wubi.settings.Settings;
 import com.github.crvv.wubinput.wubi.utils.CoordinateUtils;
 import com.github.crvv.wubinput.wubi.utils.ResourceUtils;
+import com.github.crvv.wubinput.wubi.utils.StatsUtils;
 
 import java.util.ArrayList;
 
@@ -694,6 +695,7 @@ public final class PointerTracker implements PointerTrackerQueue.Element,
             }
         }
 
+        StatsUtils.onTouchDown(eventTime);
         final Key key = getKeyOn(x, y);
         mBogusMoveEventDetector.onActualDownEvent(x, y);
         if (key != null && key.isModifier()) {
@@ -20,6 +20,7 @@ import com.github.crvv.wubinput.keyboard.internal.TouchPositionCorrection;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 
 public class ProximityInfo {
@@ -68,6 +69,38 @@ public class ProximityInfo {
         computeNearestNeighbors();
     }
 
+    /**
+     * Restores the grid of a keyboard read from disk.
+     * @param gridNeighborIndices for each cell, the indices in sortedKeys of its nearest keys,
+     * or null if the grid was not computed.
+     */
+    @SuppressWarnings("unchecked")
+    ProximityInfo(final int gridWidth, final int gridHeight, final int minWidth,
+            final int height, final int mostCommonKeyWidth, final List<Key> sortedKeys,
+            final int[][] gridNeighborIndices) {
+        mGridWidth = gridWidth;
+        mGridHeight = gridHeight;
+        mGridSize = mGridWidth * mGridHeight;
+        mCellWidth = (minWidth + mGridWidth - 1) / mGridWidth;
+        mCellHeight = (height + mGridHeight - 1) / mGridHeight;
+        mKeyboardMinWidth = minWidth;
+        mKeyboardHeight = height;
+        mMostCommonKeyWidth = mostCommonKeyWidth;
+        mSortedKeys = sortedKeys;
+        mGridNeighbors = new List[mGridSize];
+        if (gridNeighborIndices == null) {
+            return;
+        }
+        for (int i = 0; i < mGridSize; ++i) {
+            final int[] indices = gridNeighborIndices[i];
+            final ArrayList<Key> neighbors = new ArrayList<>(indices.length);
+            for (final int index : indices) {
+                neighbors.add(sortedKeys.get(index));
+            }
+            mGridNeighbors[i] = Collections.unmodifiableList(neighbors);
+        }
+    }
+
     @Override
     protected void finalize() throws Throwable {
         super.finalize();
@@ -198,6 +231,38 @@ y |---+---+---+---+-v-+-|-+---+---+---+---+---|          | thresholdBase and get
         }
     }
 
+    int getGridWidth() {
+        return mGridWidth;
+    }
+
+    int getGridHeight() {
+        return mGridHeight;
+    }
+
+    /**
+     * @return for each cell, the indices in the sorted keys of its nearest keys, or null if the
+     * grid was not computed.
+     */
+    int[][] getGridNeighborIndices() {
+        if (mGridSize == 0 || mGridNeighbors[0] == null) {
+            return null;
+        }
+        final IdentityHashMap<Key, Integer> keyIndices = new IdentityHashMap<>();
+        for (int i = 0; i < mSortedKeys.size(); ++i) {
+            keyIndices.put(mSortedKeys.get(i), i);
+        }
+        final int[][] gridNeighborIndices = new int[mGridSize][];
+        for (int i = 0; i < mGridSize; ++i) {
+            final List<Key> neighbors = mGridNeighbors[i];
+            final int[] indices = new int[neighbors.size()];
+            for (int j = 0; j < indices.length; j++) {
+                indices[j] = keyIndices.get(neighbors.get(j));
+            }
+            gridNeighborIndices[i] = indices;
+        }
+        return gridNeighborIndices;
+    }
+
     public List<Key> getNearestKeys(final int x, final int y) {
         if (mGridNeighbors == null) {
             return EMPTY_KEY_LIST;
@@ -0,0 +1,260 @@
+package com.github.crvv.wubinput.keyboard.internal;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Key labels rendered once into a shared bitmap, so that drawing a label again copies its pixels
+ * instead of laying out and rasterizing the text.
+ *
+ * A label is rendered the first time it is drawn with a given typeface, size, x-scale and color,
+ * at the fraction of a pixel its origin falls on, so that it is copied to the pixels drawText
+ * would have drawn. It is kept until the atlas is released or reset to another size, which the
+ * keyboard view does when the size of the keyboard changes. A new theme comes with a new
+ * keyboard view. The labels are packed in rows, and the bitmap grows by one row at a time up to
+ * its maximum height; once it is full, the labels that do not fit are drawn as text.
+ * Text shadows are not supported. Only used on the UI thread.
+ */
+public final class KeyLabelAtlas {
+    // Room for antialiasing around the ink of a label.
+    private static final int MARGIN = 1;
+
+    private int mWidth;
+    private int mMaxHeight;
+    // As high as the rows of labels, null until a label is drawn.
+    private Bitmap mBitmap;
+    private final Canvas mCanvas = new Canvas();
+    // The row being filled.
+    private int mRowX;
+    private int mRowY;
+    private int mRowHeight;
+
+    private final HashMap<LabelKey, Label> mLabels = new HashMap<>();
+    // To look labels up without allocating.
+    private final LabelKey mProbe = new LabelKey();
+    private final Paint mBlitPaint = new Paint();
+    private final Rect mInkBounds = new Rect();
+    private final Rect mDestination = new Rect();
+
+    private static final class LabelKey {
+        String mText;
+        Typeface mTypeface;
+        float mTextSize;
+        float mTextScaleX;
+        int mColor;
+
+        LabelKey set(final String text, final Paint paint, final int color) {
+            mText = text;
+            mTypeface = paint.getTypeface();
+            mTextSize = paint.getTextSize();
+            mTextScaleX = paint.getTextScaleX();
+            mColor = color;
+            return this;
+        }
+
+        LabelKey copy() {
+            final LabelKey key = new LabelKey();
+            key.mText = mText;
+            key.mTypeface = mTypeface;
+            key.mTextSize = mTextSize;
+            key.mTextScaleX = mTextScaleX;
+            key.mColor = mColor;
+            return key;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof LabelKey)) return false;
+            final LabelKey key = (LabelKey)o;
+            return mText.equals(key.mText) && mTypeface == key.mTypeface
+                    && mTextSize == key.mTextSize && mTextScaleX == key.mTextScaleX
+                    && mColor == key.mColor;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = mText.hashCode();
+            hash = hash * 31 + System.identityHashCode(mTypeface);
+            hash = hash * 31 + Float.floatToIntBits(mTextSize);
+            hash = hash * 31 + Float.floatToIntBits(mTextScaleX);
+            return hash * 31 + mColor;
+        }
+    }
+
+    private static final class Label {
+        final float mAdvance;
+        // One per fraction of a pixel the label was drawn at; a key always draws its label at
+        // the same one.
+        final ArrayList<Entry> mEntries = new ArrayList<>(1);
+
+        Label(final float advance) {
+            mAdvance = advance;
+        }
+
+        Entry getEntry(final float phaseX, final float phaseY) {
+            for (int i = 0; i < mEntries.size(); i++) {
+                final Entry entry = mEntries.get(i);
+                if (entry.mPhaseX == phaseX && entry.mPhaseY == phaseY) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Entry {
+        // Where the label is in the atlas.
+        final Rect mBounds;
+        // The top left corner of mBounds, from the origin of left aligned text rounded down.
+        final int mOffsetX;
+        final int mOffsetY;
+        // The fraction of a pixel the origin was rendered at.
+        final float mPhaseX;
+        final float mPhaseY;
+
+        Entry(final Rect bounds, final int offsetX, final int offsetY, final float phaseX,
+                final float phaseY) {
+            mBounds = bounds;
+            mOffsetX = offsetX;
+            mOffsetY = offsetY;
+            mPhaseX = phaseX;
+            mPhaseY = phaseY;
+        }
+    }
+
+    /**
+     * Empties the atlas if its size changes. The bitmap is allocated when a label is drawn, and
+     * grows with the labels up to the maximum height.
+     */
+    public void reset(final int width, final int maxHeight) {
+        if (width == mWidth && maxHeight == mMaxHeight) {
+            return;
+        }
+        release();
+        mWidth = width;
+        mMaxHeight = maxHeight;
+    }
+
+    /**
+     * Drops the labels and the bitmap, which the next labels drawn allocate again.
+     */
+    public void release() {
+        mLabels.clear();
+        mCanvas.setBitmap(null);
+        // Not recycled, a display list may still be drawing it.
+        mBitmap = null;
+        mRowX = 0;
+        mRowY = 0;
+        mRowHeight = 0;
+    }
+
+    /**
+     * Draws the text like {@link Canvas#drawText(String, float, float, Paint)} does.
+     * @param paint the paint to draw the text with, without a shadow layer.
+     */
+    public void drawText(final Canvas canvas, final String text, final float x, final float y,
+            final Paint paint) {
+        final int color = paint.getColor();
+        final int alpha = Color.alpha(color);
+        if (alpha == 0) {
+            return;
+        }
+        // The label is rendered opaque and blended when it is copied, so that the alpha of an
+        // animation does not render it again.
+        final int opaqueColor = color | 0xFF000000;
+        Label label = mLabels.get(mProbe.set(text, paint, opaqueColor));
+        if (label == null) {
+            if (mWidth <= 0 || mMaxHeight <= 0) {
+                canvas.drawText(text, 0, text.length(), x, y, paint);
+                return;
+            }
+            label = new Label(paint.measureText(text));
+            mLabels.put(mProbe.copy(), label);
+        }
+        final float originX;
+        switch (paint.getTextAlign()) {
+        case CENTER:
+            originX = x - label.mAdvance / 2.0f;
+            break;
+        case RIGHT:
+            originX = x - label.mAdvance;
+            break;
+        default:
+            originX = x;
+            break;
+        }
+        final float pixelX = (float)Math.floor(originX);
+        final float pixelY = (float)Math.floor(y);
+        final float phaseX = originX - pixelX;
+        final float phaseY = y - pixelY;
+        Entry entry = label.getEntry(phaseX, phaseY);
+        if (entry == null) {
+            entry = addEntry(text, paint, opaqueColor, phaseX, phaseY);
+            if (entry == null) {
+                canvas.drawText(text, 0, text.length(), x, y, paint);
+                return;
+            }
+            label.mEntries.add(entry);
+        }
+        final int left = (int)pixelX + entry.mOffsetX;
+        final int top = (int)pixelY + entry.mOffsetY;
+        mDestination.set(left, top, left + entry.mBounds.width(), top + entry.mBounds.height());
+        mBlitPaint.setAlpha(alpha);
+        canvas.drawBitmap(mBitmap, entry.mBounds, mDestination, mBlitPaint);
+    }
+
+    private Entry addEntry(final String text, final Paint paint, final int opaqueColor,
+            final float phaseX, final float phaseY) {
+        final Paint.Align align = paint.getTextAlign();
+        paint.setTextAlign(Paint.Align.LEFT);
+        paint.getTextBounds(text, 0, text.length(), mInkBounds);
+        // The phase moves the ink by up to a pixel to the right and down.
+        final int width = mInkBounds.width() + 1 + MARGIN * 2;
+        final int height = mInkBounds.height() + 1 + MARGIN * 2;
+        if (mRowX + width > mWidth) {
+            mRowX = 0;
+            mRowY += mRowHeight;
+            mRowHeight = 0;
+        }
+        if (width > mWidth || mRowY + height > mMaxHeight) {
+            paint.setTextAlign(align);
+            return null;
+        }
+        growBitmap(mRowY + height);
+        final Rect bounds = new Rect(mRowX, mRowY, mRowX + width, mRowY + height);
+        mRowX += width;
+        mRowHeight = Math.max(mRowHeight, height);
+
+        final int offsetX = mInkBounds.left - MARGIN;
+        final int offsetY = mInkBounds.top - MARGIN;
+        final int color = paint.getColor();
+        paint.setColor(opaqueColor);
+        mCanvas.drawText(text, 0, text.length(), bounds.left - offsetX + phaseX,
+                bounds.top - offsetY + phaseY, paint);
+        paint.setColor(color);
+        paint.setTextAlign(align);
+        return new Entry(bounds, offsetX, offsetY, phaseX, phaseY);
+    }
+
+    // Makes the bitmap at least as high as the given height, keeping the labels already in it.
+    // A keyboard only has a few rows of labels, so it is grown to the height needed and no more.
+    private void growBitmap(final int height) {
+        if (mBitmap != null && mBitmap.getHeight() >= height) {
+            return;
+        }
+        final Bitmap bitmap = Bitmap.createBitmap(mWidth, height, Bitmap.Config.ARGB_8888);
+        mCanvas.setBitmap(bitmap);
+        if (mBitmap != null) {
+            // Not recycled, a display list may still be drawing it.
+            mCanvas.drawBitmap(mBitmap, 0.0f, 0.0f, null);
+        }
+        mBitmap = bitmap;
+    }
+}
@@ -23,6 +23,10 @@ import android.util.SparseIntArray;
 import com.github.crvv.wubinput.wubi.R;
 import com.github.crvv.wubinput.wubi.utils.ResourceUtils;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 public final class KeyVisualAttributes {
     public final Typeface mTypeface;
 
@@ -75,6 +79,7 @@ public final class KeyVisualAttributes {
     private static final SparseIntArray sVisualAttributeIds = new SparseIntArray();
     private static final int ATTR_DEFINED = 1;
     private static final int ATTR_NOT_FOUND = 0;
+    private static final int NO_TYPEFACE = -1;
     static {
         for (final int attrId : VISUAL_ATTRIBUTE_IDS) {
             sVisualAttributeIds.put(attrId, ATTR_DEFINED);
@@ -93,6 +98,66 @@ public final class KeyVisualAttributes {
         return null;
     }
 
+    /**
+     * Reads attributes written by {@link #writeTo(DataOutputStream)}.
+     */
+    public static KeyVisualAttributes readFrom(final DataInputStream in) throws IOException {
+        return new KeyVisualAttributes(in);
+    }
+
+    private KeyVisualAttributes(final DataInputStream in) throws IOException {
+        final int typefaceStyle = in.readInt();
+        mTypeface = (typefaceStyle == NO_TYPEFACE) ? null
+                : Typeface.defaultFromStyle(typefaceStyle);
+        mLetterRatio = in.readFloat();
+        mLetterSize = in.readInt();
+        mLabelRatio = in.readFloat();
+        mLabelSize = in.readInt();
+        mLargeLetterRatio = in.readFloat();
+        mHintLetterRatio = in.readFloat();
+        mShiftedLetterHintRatio = in.readFloat();
+        mHintLabelRatio = in.readFloat();
+        mPreviewTextRatio = in.readFloat();
+        mTextColor = in.readInt();
+        mTextInactivatedColor = in.readInt();
+        mTextShadowColor = in.readInt();
+        mFunctionalTextColor = in.readInt();
+        mHintLetterColor = in.readInt();
+        mHintLabelColor = in.readInt();
+        mShiftedLetterHintInactivatedColor = in.readInt();
+        mShiftedLetterHintActivatedColor = in.readInt();
+        mPreviewTextColor = in.readInt();
+        mHintLabelVerticalAdjustment = in.readFloat();
+        mLabelOffCenterRatio = in.readFloat();
+        mHintLabelOffCenterRatio = in.readFloat();
+    }
+
+    public void writeTo(final DataOutputStream out) throws IOException {
+        // The typeface is always one of the default ones.
+        out.writeInt(mTypeface == null ? NO_TYPEFACE : mTypeface.getStyle());
+        out.writeFloat(mLetterRatio);
+        out.writeInt(mLetterSize);
+        out.writeFloat(mLabelRatio);
+        out.writeInt(mLabelSize);
+        out.writeFloat(mLargeLetterRatio);
+        out.writeFloat(mHintLetterRatio);
+        out.writeFloat(mShiftedLetterHintRatio);
+        out.writeFloat(mHintLabelRatio);
+        out.writeFloat(mPreviewTextRatio);
+        out.writeInt(mTextColor);
+        out.writeInt(mTextInactivatedColor);
+        out.writeInt(mTextShadowColor);
+        out.writeInt(mFunctionalTextColor);
+        out.writeInt(mHintLetterColor);
+        out.writeInt(mHintLabelColor);
+        out.writeInt(mShiftedLetterHintInactivatedColor);
+        out.writeInt(mShiftedLetterHintActivatedColor);
+        out.writeInt(mPreviewTextColor);
+        out.writeFloat(mHintLabelVerticalAdjustment);
+        out.writeFloat(mLabelOffCenterRatio);
+        out.writeFloat(mHintLabelOffCenterRatio);
+    }
+
     private KeyVisualAttributes(final TypedArray keyAttr) {
         if (keyAttr.hasValue(R.styleable.Keyboard_Key_keyTypeface)) {
             mTypeface = Typeface.defaultFromStyle(
@@ -16,6 +16,7 @@
 
 package com.github.crvv.wubinput.keyboard.internal;
 
+import android.content.Context;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.drawable.Drawable;
@@ -123,6 +124,36 @@ public final class KeyboardIconsSet {
         }
     }
 
+    /**
+     * Loads the icons of a keyboard read back from disk, from their resource ids.
+     * @param context the context of the keyboard theme.
+     * @param iconResourceIds as returned by {@link #getIconResourceIds()}.
+     */
+    public void loadIcons(final Context context, final int[] iconResourceIds) {
+        final int count = Math.min(iconResourceIds.length, NUM_ICONS);
+        for (int iconId = 0; iconId < count; iconId++) {
+            final int resourceId = iconResourceIds[iconId];
+            if (resourceId == 0) {
+                continue;
+            }
+            try {
+                final Drawable icon = context.getDrawable(resourceId);
+                setDefaultBounds(icon);
+                mIcons[iconId] = icon;
+                mIconResourceIds[iconId] = resourceId;
+            } catch (Resources.NotFoundException e) {
+                Log.w(TAG, "Drawable resource for icon " + ICON_NAMES[iconId] + " not found");
+            }
+        }
+    }
+
+    /**
+     * @return the resource id of each icon, indexed by icon id, or 0 for an icon not defined.
+     */
+    public int[] getIconResourceIds() {
+        return mIconResourceIds.clone();
+    }
+
     private static boolean isValidIconId(final int iconId) {
         return iconId >= 0 && iconId < ICON_NAMES.length;
     }
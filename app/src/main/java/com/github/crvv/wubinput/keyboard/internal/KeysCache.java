@@ -20,14 +20,18 @@ import com.github.crvv.wubinput.keyboard.Key;
 
 import java.util.HashMap;
 
+/**
+ * Shares equal keys between keyboards. Thread-safe, as keyboards may be built on several threads
+ * at once.
+ */
 public final class KeysCache {
     private final HashMap<Key, Key> mMap = new HashMap<>();
 
-    public void clear() {
+    public synchronized void clear() {
         mMap.clear();
     }
 
-    public Key get(final Key key) {
+    public synchronized Key get(final Key key) {
         final Key existingKey = mMap.get(key);
         if (existingKey != null) {
             // Reuse the existing element that equals to "key" without adding "key" to the map.
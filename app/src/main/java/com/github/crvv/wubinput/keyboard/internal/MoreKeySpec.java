@@ -67,6 +67,18 @@ public final class MoreKeySpec {
         mIconId = KeySpecParser.getIconId(moreKeySpec);
     }
 
+    /**
+     * Constructor for a more key whose specification has already been parsed, such as one read
+     * back from a keyboard cache file.
+     */
+    public MoreKeySpec(final int code, final String label, final String outputText,
+            final int iconId) {
+        mCode = code;
+        mLabel = label;
+        mOutputText = outputText;
+        mIconId = iconId;
+    }
+
     public Key buildKey(final int x, final int y, final int labelFlags,
             final KeyboardParams params) {
         return new Key(mLabel, mIconId, mCode, mOutputText, null /* hintLabel */, labelFlags,
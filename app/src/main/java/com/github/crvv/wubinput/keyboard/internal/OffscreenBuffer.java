@@ -0,0 +1,178 @@
+package com.github.crvv.wubinput.keyboard.internal;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Region;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bitmaps a keyboard view draws its keys into when it is not hardware accelerated, so that
+ * redrawing one key does not draw the others again.
+ *
+ * How much memory they take depends on the policy. {@link #POLICY_FULL} keeps one ARGB_8888
+ * bitmap of the size of the view until {@link #release()}. {@link #POLICY_LEAN} splits the view
+ * into bands, each its own bitmap, uses RGB_565 when the background of the view is opaque, and
+ * is released as soon as the keyboard is hidden. {@link #POLICY_NONE} keeps no bitmap at all.
+ * Only used on the UI thread, but the bytes held can be read from any thread.
+ */
+public final class OffscreenBuffer {
+    public static final int POLICY_FULL = 0;
+    public static final int POLICY_LEAN = 1;
+    public static final int POLICY_NONE = 2;
+
+    private static final int LEAN_TILE_COUNT = 4;
+
+    // The bytes held by the buffers of all views.
+    private static final AtomicLong sTotalBytesHeld = new AtomicLong();
+
+    private final int mPolicy;
+    private final Canvas mCanvas = new Canvas();
+    private final Region mTileClipRegion = new Region();
+    private Bitmap[] mTiles;
+    private int mWidth;
+    private int mHeight;
+    private int mTileHeight;
+    private Bitmap.Config mConfig;
+    private long mBytesHeld;
+
+    public OffscreenBuffer(final int policy) {
+        mPolicy = (policy == POLICY_LEAN || policy == POLICY_NONE) ? policy : POLICY_FULL;
+    }
+
+    public boolean isEnabled() {
+        return mPolicy != POLICY_NONE;
+    }
+
+    /**
+     * @return whether the buffer is released when the keyboard is hidden.
+     */
+    public boolean isReleasedWhenHidden() {
+        return mPolicy == POLICY_LEAN;
+    }
+
+    /**
+     * Allocates the bitmaps, unless they already have the given size and can hold the view.
+     * @param isOpaque whether the background of the view is opaque.
+     * @return whether the bitmaps were allocated, and the whole view has to be drawn into them.
+     */
+    public boolean allocate(final int width, final int height, final boolean isOpaque) {
+        if (!isEnabled() || width == 0 || height == 0) {
+            return false;
+        }
+        final Bitmap.Config config = (mPolicy == POLICY_LEAN && isOpaque)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        if (mTiles != null && width == mWidth && height == mHeight && config == mConfig) {
+            return false;
+        }
+        release();
+        final int tileCount = (mPolicy == POLICY_LEAN) ? LEAN_TILE_COUNT : 1;
+        mTileHeight = (height + tileCount - 1) / tileCount;
+        mTiles = new Bitmap[tileCount];
+        long bytes = 0;
+        for (int i = 0; i < tileCount; i++) {
+            final int tileHeight = Math.min(mTileHeight, height - i * mTileHeight);
+            if (tileHeight <= 0) {
+                break;
+            }
+            mTiles[i] = Bitmap.createBitmap(width, tileHeight, config);
+            bytes += mTiles[i].getByteCount();
+        }
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+        mBytesHeld = bytes;
+        sTotalBytesHeld.addAndGet(bytes);
+        return true;
+    }
+
+    public boolean isAllocated() {
+        return mTiles != null;
+    }
+
+    public int getTileCount() {
+        return (mTiles == null) ? 0 : mTiles.length;
+    }
+
+    /**
+     * @return the top of the tile, in the coordinates of the view.
+     */
+    public int getTileTop(final int index) {
+        return index * mTileHeight;
+    }
+
+    /**
+     * @return the bottom of the tile, in the coordinates of the view.
+     */
+    public int getTileBottom(final int index) {
+        final Bitmap tile = mTiles[index];
+        return getTileTop(index) + ((tile == null) ? 0 : tile.getHeight());
+    }
+
+    /**
+     * Prepares drawing into a tile, in the coordinates of the view.
+     * @param clipRegion what has to be drawn again, in the coordinates of the view.
+     * @return the canvas to draw the tile with, clipped to the region, or null if the region
+     * does not cross the tile. Call {@link #endTile()} once it is drawn.
+     */
+    public Canvas beginTile(final int index, final Region clipRegion) {
+        final Bitmap tile = mTiles[index];
+        if (tile == null) {
+            return null;
+        }
+        final int top = getTileTop(index);
+        mTileClipRegion.set(0, top, mWidth, getTileBottom(index));
+        if (!mTileClipRegion.op(clipRegion, Region.Op.INTERSECT)) {
+            return null;
+        }
+        // A region is in the coordinates of the bitmap, whatever the matrix is.
+        mTileClipRegion.translate(0, -top);
+        mCanvas.setBitmap(tile);
+        mCanvas.clipRegion(mTileClipRegion, Region.Op.REPLACE);
+        mCanvas.translate(0, -top);
+        return mCanvas;
+    }
+
+    public void endTile() {
+        mCanvas.setBitmap(null);
+        mCanvas.setMatrix(null);
+    }
+
+    public void draw(final Canvas canvas) {
+        if (mTiles == null) {
+            return;
+        }
+        for (int i = 0; i < mTiles.length; i++) {
+            if (mTiles[i] != null) {
+                canvas.drawBitmap(mTiles[i], 0.0f, i * mTileHeight, null);
+            }
+        }
+    }
+
+    public void release() {
+        mCanvas.setBitmap(null);
+        mCanvas.setMatrix(null);
+        if (mTiles == null) {
+            return;
+        }
+        for (final Bitmap tile : mTiles) {
+            if (tile != null) {
+                tile.recycle();
+            }
+        }
+        mTiles = null;
+        sTotalBytesHeld.addAndGet(-mBytesHeld);
+        mBytesHeld = 0;
+    }
+
+    public long getBytesHeld() {
+        return mBytesHeld;
+    }
+
+    /**
+     * @return the bytes held by the buffers of all keyboard views.
+     */
+    public static long getTotalBytesHeld() {
+        return sTotalBytesHeld.get();
+    }
+}
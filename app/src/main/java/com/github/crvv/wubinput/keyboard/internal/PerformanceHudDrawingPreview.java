@@ -0,0 +1,158 @@
+package com.github.crvv.wubinput.keyboard.internal;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import com.github.crvv.wubinput.keyboard.PointerTracker;
+import com.github.crvv.wubinput.wubi.utils.ExecutorUtils;
+import com.github.crvv.wubinput.wubi.utils.StatsUtils;
+
+/**
+ * Draws live performance counters over the top left corner of the keyboard, for debugging.
+ *
+ * The counters are read when {@link #update(int)} is called, once per suggestion strip update.
+ * Frames are only watched while a key preview is shown and a little after, which is when a
+ * dropped frame is seen. When the preview is disabled, nothing is read, watched or drawn.
+ */
+public final class PerformanceHudDrawingPreview extends AbstractDrawingPreview {
+    private static final int BACKGROUND_COLOR = Color.argb(0xA0, 0, 0, 0);
+    private static final int TEXT_COLOR = Color.GREEN;
+    private static final int LINE_COUNT = 5;
+    // Long enough for the dismiss animation of a key preview to end.
+    private static final long FRAME_WATCH_TAIL_MILLIS = 300;
+    private static final float DEFAULT_REFRESH_RATE = 60.0f;
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private final Paint mTextPaint = new Paint();
+    private final Paint mBackgroundPaint = new Paint();
+    private final float mLineHeight;
+    private final float mPadding;
+    private final String[] mLines = new String[LINE_COUNT];
+
+    private long mFrameIntervalNanos = (long)(1000 * NANOS_PER_MILLI / DEFAULT_REFRESH_RATE);
+    private long mLastFrameTimeNanos;
+    private long mFrameWatchEndTime;
+    private boolean mIsWatchingFrames;
+    private int mDroppedFrameCount;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(final long frameTimeNanos) {
+            if (mLastFrameTimeNanos != 0) {
+                // A frame is dropped for each vsync that passed without one.
+                final long missedFrames =
+                        (frameTimeNanos - mLastFrameTimeNanos) / mFrameIntervalNanos - 1;
+                if (missedFrames > 0) {
+                    mDroppedFrameCount += missedFrames;
+                }
+            }
+            mLastFrameTimeNanos = frameTimeNanos;
+            if (isPreviewEnabled() && SystemClock.uptimeMillis() < mFrameWatchEndTime) {
+                Choreographer.getInstance().postFrameCallback(this);
+            } else {
+                mIsWatchingFrames = false;
+                mLastFrameTimeNanos = 0;
+            }
+        }
+    };
+
+    public PerformanceHudDrawingPreview(final float textSize) {
+        mTextPaint.setAntiAlias(true);
+        mTextPaint.setColor(TEXT_COLOR);
+        mTextPaint.setTextSize(textSize);
+        mBackgroundPaint.setColor(BACKGROUND_COLOR);
+        mLineHeight = textSize * 1.2f;
+        mPadding = textSize / 2;
+    }
+
+    /**
+     * @param refreshRate the refresh rate of the display the keyboard is on, in frames per
+     * second.
+     */
+    public void setRefreshRate(final float refreshRate) {
+        final float rate = refreshRate > 0 ? refreshRate : DEFAULT_REFRESH_RATE;
+        mFrameIntervalNanos = (long)(1000 * NANOS_PER_MILLI / rate);
+    }
+
+    /**
+     * Reads the counters again and redraws them.
+     * @param pendingRequestCount the number of requests waiting on the input logic thread.
+     */
+    public void update(final int pendingRequestCount) {
+        if (!isPreviewEnabled()) {
+            return;
+        }
+        final long lastLookupMicros = StatsUtils.getLastLookupMicros();
+        mLines[0] = "lookup " + (lastLookupMicros / 1000) + "."
+                + (lastLookupMicros % 1000 / 100) + "ms";
+        final StringBuilder queues = new StringBuilder("queue input ").append(pendingRequestCount);
+        for (final ExecutorUtils.LaneStats laneStats : ExecutorUtils.getAllStats()) {
+            queues.append(' ').append(laneStats.mQueueDepth);
+        }
+        mLines[1] = queues.toString();
+        mLines[2] = "dropped frames " + mDroppedFrameCount;
+        final int cacheHitPercent = StatsUtils.getSuggestionCacheHitPercent();
+        mLines[3] = "cache hits " + (cacheHitPercent < 0 ? "-" : cacheHitPercent + "%");
+        final Runtime runtime = Runtime.getRuntime();
+        mLines[4] = "heap " + (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024)
+                + "/" + runtime.maxMemory() / (1024 * 1024) + "MB buffers "
+                + OffscreenBuffer.getTotalBytesHeld() / 1024 + "KB";
+        invalidateDrawingView();
+    }
+
+    /**
+     * Counts the frames dropped from now until a little after the key preview is dismissed.
+     */
+    public void onKeyPreviewShown() {
+        if (!isPreviewEnabled()) {
+            return;
+        }
+        // Extended by onKeyPreviewDismissed.
+        mFrameWatchEndTime = Long.MAX_VALUE;
+        if (!mIsWatchingFrames) {
+            mIsWatchingFrames = true;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    }
+
+    public void onKeyPreviewDismissed() {
+        if (!mIsWatchingFrames) {
+            return;
+        }
+        mFrameWatchEndTime = SystemClock.uptimeMillis() + FRAME_WATCH_TAIL_MILLIS;
+    }
+
+    @Override
+    public void onDeallocateMemory() {
+        if (mIsWatchingFrames) {
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            mIsWatchingFrames = false;
+            mLastFrameTimeNanos = 0;
+        }
+    }
+
+    @Override
+    public void drawPreview(final Canvas canvas) {
+        if (!isPreviewEnabled() || mLines[0] == null) {
+            return;
+        }
+        float width = 0;
+        for (final String line : mLines) {
+            width = Math.max(width, mTextPaint.measureText(line));
+        }
+        canvas.drawRect(0, 0, width + mPadding * 2, mLineHeight * LINE_COUNT + mPadding * 2,
+                mBackgroundPaint);
+        for (int i = 0; i < LINE_COUNT; i++) {
+            canvas.drawText(mLines[i], mPadding, mPadding + mLineHeight * (i + 1)
+                    - mTextPaint.descent(), mTextPaint);
+        }
+    }
+
+    @Override
+    public void setPreviewPosition(final PointerTracker tracker) {
+        // The counters are always drawn at the same place.
+    }
+}
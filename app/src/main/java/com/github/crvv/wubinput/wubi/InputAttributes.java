@@ -20,6 +20,7 @@ import android.text.InputType;
 import android.util.Log;
 import android.view.inputmethod.EditorInfo;
 
+import com.github.crvv.wubinput.compat.EditorInfoCompatUtils;
 import com.github.crvv.wubinput.wubi.utils.InputTypeUtils;
 import com.github.crvv.wubinput.wubi.utils.StringUtils;
 
@@ -37,6 +38,7 @@ public final class InputAttributes {
     final public boolean mShouldInsertSpacesAutomatically;
     final public boolean mShouldShowVoiceInputKey;
     final public boolean mIsGeneralTextInput;
+    final public boolean mNoPersonalizedLearning;
     final private int mInputType;
     final private EditorInfo mEditorInfo;
     final private String mPackageNameForPrivateImeOptions;
@@ -51,6 +53,8 @@ public final class InputAttributes {
         mInputType = inputType;
         mIsPasswordField = InputTypeUtils.isPasswordInputType(inputType)
                 || InputTypeUtils.isVisiblePasswordInputType(inputType);
+        mNoPersonalizedLearning = editorInfo != null
+                && EditorInfoCompatUtils.hasFlagNoPersonalizedLearning(editorInfo.imeOptions);
         if (inputClass != InputType.TYPE_CLASS_TEXT) {
             // If we are not looking at a TYPE_CLASS_TEXT field, the following strange
             // cases may arise, so we do a couple sanity checks for them. If it's a
@@ -123,13 +127,14 @@ public final class InputAttributes {
     @Override
     public String toString() {
         return String.format(
-                "%s: inputType=0x%08x%s%s%s%s%s targetApp=%s\n", getClass().getSimpleName(),
+                "%s: inputType=0x%08x%s%s%s%s%s%s targetApp=%s\n", getClass().getSimpleName(),
                 mInputType,
                 (mInputTypeNoAutoCorrect ? " noAutoCorrect" : ""),
                 (mIsPasswordField ? " password" : ""),
                 (mShouldShowSuggestions ? " shouldShowSuggestions" : ""),
                 (mApplicationSpecifiedCompletionOn ? " appSpecified" : ""),
                 (mShouldInsertSpacesAutomatically ? " insertSpaces" : ""),
+                (mNoPersonalizedLearning ? " noPersonalizedLearning" : ""),
                 mTargetApplicationPackageName);
     }
 
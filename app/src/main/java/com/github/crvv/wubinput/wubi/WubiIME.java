@@ -62,6 +62,7 @@ import com.github.crvv.wubinput.keyboard.KeyboardActionListener;
 import com.github.crvv.wubinput.keyboard.KeyboardId;
 import com.github.crvv.wubinput.keyboard.KeyboardSwitcher;
 import com.github.crvv.wubinput.keyboard.MainKeyboardView;
+import com.github.crvv.wubinput.keyboard.internal.OffscreenBuffer;
 import com.github.crvv.wubinput.wubi.define.DebugFlags;
 import com.github.crvv.wubinput.wubi.define.ProductionFlags;
 import com.github.crvv.wubinput.wubi.dictionary.DictionaryFacilitator;
@@ -79,6 +80,7 @@ import com.github.crvv.wubinput.wubi.utils.ApplicationUtils;
 import com.github.crvv.wubinput.wubi.utils.CoordinateUtils;
 import com.github.crvv.wubinput.wubi.utils.CursorAnchorInfoUtils;
 import com.github.crvv.wubinput.wubi.utils.DialogUtils;
+import com.github.crvv.wubinput.wubi.utils.ExecutorUtils;
 import com.github.crvv.wubinput.wubi.utils.ImportantNoticeUtils;
 import com.github.crvv.wubinput.wubi.utils.IntentUtils;
 import com.github.crvv.wubinput.wubi.utils.LeakGuardHandlerWrapper;
@@ -86,6 +88,8 @@ import com.github.crvv.wubinput.wubi.utils.StatsUtils;
 import com.github.crvv.wubinput.wubi.utils.SubtypeLocaleUtils;
 import com.github.crvv.wubinput.wubi.utils.ViewLayoutUtils;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Locale;
 
@@ -151,8 +155,9 @@ public class WubiIME extends InputMethodService implements KeyboardActionListene
         private static final int MSG_UPDATE_TAIL_BATCH_INPUT_COMPLETED = 6;
         private static final int MSG_RESET_CACHES = 7;
         private static final int MSG_WAIT_FOR_DICTIONARY_LOAD = 8;
+        private static final int MSG_RESOLVE_INPUT_WAITING_FOR_DICTIONARY = 9;
         // Update this when adding new messages
-        private static final int MSG_LAST = MSG_WAIT_FOR_DICTIONARY_LOAD;
+        private static final int MSG_LAST = MSG_RESOLVE_INPUT_WAITING_FOR_DICTIONARY;
 
         private static final int ARG1_NOT_GESTURE_INPUT = 0;
         private static final int ARG1_DISMISS_GESTURE_FLOATING_PREVIEW_TEXT = 1;
@@ -190,7 +195,7 @@ public class WubiIME extends InputMethodService implements KeyboardActionListene
             switch (msg.what) {
             case MSG_UPDATE_SUGGESTION_STRIP:
                 cancelUpdateSuggestionStrip();
-                latinIme.mInputLogic.performUpdateSuggestionStripSync(
+                latinIme.mInputLogic.performUpdateSuggestionStrip(
                         latinIme.mSettings.getCurrent(), msg.arg1 /* inputStyle */);
                 break;
             case MSG_UPDATE_SHIFT_STATE:
@@ -238,6 +243,9 @@ public class WubiIME extends InputMethodService implements KeyboardActionListene
             case MSG_WAIT_FOR_DICTIONARY_LOAD:
                 Log.i(TAG, "Timeout waiting for dictionary load");
                 break;
+            case MSG_RESOLVE_INPUT_WAITING_FOR_DICTIONARY:
+                latinIme.mInputLogic.onMainDictionaryReady(latinIme.mSettings.getCurrent());
+                break;
             }
         }
 
@@ -286,6 +294,10 @@ public class WubiIME extends InputMethodService implements KeyboardActionListene
             removeMessages(MSG_WAIT_FOR_DICTIONARY_LOAD);
         }
 
+        public void postResolveInputWaitingForDictionary() {
+            sendMessage(obtainMessage(MSG_RESOLVE_INPUT_WAITING_FOR_DICTIONARY));
+        }
+
         public boolean hasPendingWaitForDictionaryLoad() {
             return hasMessages(MSG_WAIT_FOR_DICTIONARY_LOAD);
         }
@@ -331,6 +343,10 @@ public class WubiIME extends InputMethodService implements KeyboardActionListene
                     ARG1_NOT_GESTURE_INPUT, ARG2_UNUSED, suggestedWords).sendToTarget();
         }
 
+        public void cancelShowSuggestionStrip() {
+            removeMessages(MSG_SHOW_GESTURE_PREVIEW_AND_SUGGESTION_STRIP);
+        }
+
         public void showTailBatchInputResult(final SuggestedWords suggestedWords) {
             obtainMessage(MSG_UPDATE_TAIL_BATCH_INPUT_COMPLETED, suggestedWords).sendToTarget();
         }
@@ -546,6 +562,8 @@ public class WubiIME extends InputMethodService implements KeyboardActionListene
             mHandler.postResumeSuggestions(true /* shouldIncludeResumedWordInSuggestions */,
                     false /* shouldDelay */);
         }
+        // Keys typed while the dictionary was loading are looked up now.
+        mHandler.postResolveInputWaitingForDictionary();
     }
 
     private void resetSuggest() {
@@ -576,7 +594,7 @@ public class WubiIME extends InputMethodService implements KeyboardActionListene
         final SettingsValues settingsValues = mSettings.getCurrent();
 
         mDictionaryFacilitator.resetDictionaries(this /* context */, locale,
-                settingsValues.mUseContactsDict, false,
+                settingsValues.mUseContactsDict, settingsValues.mUsePersonalizedDicts,
                 false /* forceReloadMainDictionary */, this);
     }
 
@@ -589,6 +607,25 @@ public class WubiIME extends InputMethodService implements KeyboardActionListene
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(final int level) {
+        super.onTrimMemory(level);
+        mDictionaryFacilitator.onTrimMemory(level);
+    }
+
+    // Shown by "adb shell dumpsys activity service " followed by the component name of the IME.
+    @Override
+    protected void dump(final FileDescriptor fd, final PrintWriter fout, final String[] args) {
+        super.dump(fd, fout, args);
+        StatsUtils.dump(fout);
+        fout.println("Executor lanes:");
+        for (final ExecutorUtils.LaneStats laneStats : ExecutorUtils.getAllStats()) {
+            fout.println("  " + laneStats);
+        }
+        fout.println("Keyboard off-screen buffers: "
+                + OffscreenBuffer.getTotalBytesHeld() + " bytes");
+    }
+
     @UsedForTesting
     public void recycle() {
         unregisterReceiver(mConnectivityAndRingerModeChangeReceiver);
@@ -870,6 +907,7 @@ public class WubiIME extends InputMethodService implements KeyboardActionListene
                 currentSettingsValues.mKeyPreviewPopupDismissDelay);
         mainKeyboardView.setSlidingKeyInputPreviewEnabled(
                 currentSettingsValues.mSlidingKeyInputPreviewEnabled);
+        mainKeyboardView.setPerformanceHudEnabled(currentSettingsValues.mShowPerformanceHud);
         mainKeyboardView.setGestureHandlingEnabledByUser(false, false, false);
 
         if (TRACE) Debug.startMethodTracing("/data/trace/latinime");
@@ -881,6 +919,7 @@ public class WubiIME extends InputMethodService implements KeyboardActionListene
         final MainKeyboardView mainKeyboardView = mKeyboardSwitcher.getMainKeyboardView();
         if (mainKeyboardView != null) {
             mainKeyboardView.closing();
+            mainKeyboardView.onWindowHidden();
         }
     }
 
@@ -1359,6 +1398,7 @@ public class WubiIME extends InputMethodService implements KeyboardActionListene
 
     @Override
     public void showSuggestionStrip(final SuggestedWords sourceSuggestedWords) {
+        StatsUtils.onSuggestionsDelivered();
         final SuggestedWords suggestedWords =
                 sourceSuggestedWords.isEmpty() ? SuggestedWords.EMPTY : sourceSuggestedWords;
         if (SuggestedWords.EMPTY == suggestedWords) {
@@ -1370,6 +1410,12 @@ public class WubiIME extends InputMethodService implements KeyboardActionListene
         // touches a key that will insert it.
         AccessibilityUtils.getInstance().setAutoCorrection(suggestedWords,
                 sourceSuggestedWords.mTypedWord);
+        if (mSettings.getCurrent().mShowPerformanceHud) {
+            final MainKeyboardView mainKeyboardView = mKeyboardSwitcher.getMainKeyboardView();
+            if (mainKeyboardView != null) {
+                mainKeyboardView.updatePerformanceHud(mInputLogic.getPendingRequestCount());
+            }
+        }
     }
 
     // Called from {@link SuggestionStripView} through the {@link SuggestionStripView#Listener}
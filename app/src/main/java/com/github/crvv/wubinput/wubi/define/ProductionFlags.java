@@ -36,6 +36,19 @@ public final class ProductionFlags {
      */
     public static final boolean INCLUDE_RAW_SUGGESTIONS = false;
 
+    /**
+     * When true, {@link DictionaryFacilitator#getSuggestionResults} looks up the dictionaries
+     * concurrently and skips those that are too slow. Only worth it once several dictionaries
+     * besides the main one compute their suggestions; the user history is all in memory.
+     */
+    public static final boolean ENABLE_PARALLEL_DICTIONARY_LOOKUP = false;
+
+    /**
+     * When true, {@link StatsUtils} times each keystroke until its candidates are shown. It only
+     * takes a clock read and a few atomic increments per stage.
+     */
+    public static final boolean ENABLE_LATENCY_TRACING = true;
+
     /**
      * When false, the metrics logging is not yet ready to be enabled.
      */
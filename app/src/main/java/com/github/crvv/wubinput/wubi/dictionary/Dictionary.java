@@ -79,13 +79,46 @@ public abstract class Dictionary {
      * @param inOutLanguageWeight the language weight used for generating suggestions.
      * inOutLanguageWeight is a float array that has only one element. This can be updated when the
      * different language weight is used.
-     * @return the list of suggestions (possibly null if none)
+     * @return the list of suggestions (possibly null if none). Implementations may reuse the
+     * list on the next call from the same thread, so callers must copy what they keep.
      */
     abstract public ArrayList<SuggestedWordInfo> getSuggestions(final WordComposer composer,
             final PrevWordsInfo prevWordsInfo, final ProximityInfo proximityInfo,
             final SettingsValuesForSuggestion settingsValuesForSuggestion,
             final int sessionId, final float[] inOutLanguageWeight);
 
+    /**
+     * Override to tell cheaply that {@link #getSuggestions} would return nothing.
+     * @param typedWord the word being composed.
+     * @return false if this dictionary has no suggestion for the typed word, true if it may have.
+     */
+    public boolean mayHaveSuggestionsFor(final String typedWord) {
+        return true;
+    }
+
+    /**
+     * Override to tell that the typed word is complete and has a single suggestion, which can
+     * then be committed right away.
+     * @param typedWord the word being composed.
+     * @return the only suggestion for the typed word, or null if there is not exactly one or
+     * the word may still be extended.
+     */
+    public String getUniqueSuggestion(final String typedWord) {
+        return null;
+    }
+
+    /**
+     * Override to answer from memory, so that suggestions can be shown on the UI thread without
+     * waiting for {@link #getSuggestions}.
+     * @param typedWord the word being composed.
+     * @return the suggestions for the typed word, an empty list if there are none, or null if
+     * they are not in memory and {@link #getSuggestions} has to be called. The list may be
+     * reused like the one of {@link #getSuggestions}.
+     */
+    public ArrayList<SuggestedWordInfo> getCachedSuggestions(final String typedWord) {
+        return null;
+    }
+
     /**
      * Checks if the given word has to be treated as a valid word. Please note that some
      * dictionaries have entries that should be treated as invalid words.
@@ -136,6 +169,14 @@ public abstract class Dictionary {
         // empty base implementation
     }
 
+    /**
+     * Override to release caches when the system is low on memory.
+     * @param level The level passed to {@link android.content.ComponentCallbacks2#onTrimMemory}.
+     */
+    public void onTrimMemory(final int level) {
+        // empty base implementation
+    }
+
     /**
      * Subclasses may override to indicate that this Dictionary is not yet properly initialized.
      */
@@ -143,6 +184,14 @@ public abstract class Dictionary {
         return true;
     }
 
+    /**
+     * Subclasses may override to load ahead of time what the first lookups need. Called on a
+     * background thread once the dictionary is initialized.
+     */
+    public void warmUp() {
+        // empty base implementation
+    }
+
     /**
      * Whether we think this suggestion should trigger an auto-commit. prevWord is the word
      * before the suggestion, so that we can use n-gram frequencies.
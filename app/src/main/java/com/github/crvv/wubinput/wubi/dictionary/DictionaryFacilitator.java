@@ -17,6 +17,7 @@
 package com.github.crvv.wubinput.wubi.dictionary;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.inputmethod.InputMethodSubtype;
@@ -25,9 +26,11 @@ import com.github.crvv.wubinput.keyboard.ProximityInfo;
 import com.github.crvv.wubinput.wubi.PrevWordsInfo;
 import com.github.crvv.wubinput.wubi.dictionary.SuggestedWords.SuggestedWordInfo;
 import com.github.crvv.wubinput.wubi.WordComposer;
+import com.github.crvv.wubinput.wubi.define.ProductionFlags;
 import com.github.crvv.wubinput.wubi.settings.SettingsValuesForSuggestion;
 import com.github.crvv.wubinput.wubi.utils.DistracterFilter;
 import com.github.crvv.wubinput.wubi.utils.ExecutorUtils;
+import com.github.crvv.wubinput.wubi.utils.StatsUtils;
 import com.github.crvv.wubinput.wubi.utils.SuggestionResults;
 
 import java.io.File;
@@ -40,8 +43,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 // TODO: Consolidate dictionaries in native code.
 public class DictionaryFacilitator {
@@ -53,10 +62,32 @@ public class DictionaryFacilitator {
 
     private Dictionaries mDictionaries = new Dictionaries();
     private boolean mIsUserDictEnabled = false;
-    private volatile CountDownLatch mLatchForWaitingLoadingMainDictionary = new CountDownLatch(0);
+    private static final FutureTask<Boolean> NO_MAIN_DICTIONARY_LOAD =
+            new FutureTask<>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return false;
+                }
+            });
+    static {
+        NO_MAIN_DICTIONARY_LOAD.run();
+    }
+    // Done when no load of the main dictionary is in progress. Its value is whether the main
+    // dictionary was available at the end of the last load.
+    private volatile Future<Boolean> mMainDictionaryReadiness = NO_MAIN_DICTIONARY_LOAD;
     // To synchronize assigning mDictionaries to ensure closing dictionaries.
     private final Object mLock = new Object();
     private final DistracterFilter mDistracterFilter;
+    // Suggestions are requested on the UI thread and on the suggestion thread, and each of them
+    // merges its results into its own instance, over and over.
+    private final ThreadLocal<SuggestionResults> mSuggestionResults =
+            new ThreadLocal<SuggestionResults>() {
+                @Override
+                protected SuggestionResults initialValue() {
+                    return new SuggestionResults(null /* locale */,
+                            SuggestedWords.MAX_SUGGESTIONS, false /* isBeginningOfSentence */);
+                }
+            };
 
     private static final String[] DICT_TYPES_ORDERED_TO_GET_SUGGESTIONS =
             new String[] {
@@ -69,14 +100,19 @@ public class DictionaryFacilitator {
             };
 
     public static final Map<String, Class<? extends WubiDictionary>> DICT_TYPE_TO_CLASS = new HashMap<>();
-//
-//    static {
-//        DICT_TYPE_TO_CLASS.put(Dictionary.TYPE_USER_HISTORY, UserHistoryDictionary.class);
+
+    static {
+        DICT_TYPE_TO_CLASS.put(Dictionary.TYPE_USER_HISTORY, UserHistoryDictionary.class);
 //        DICT_TYPE_TO_CLASS.put(Dictionary.TYPE_PERSONALIZATION, PersonalizationDictionary.class);
 //        DICT_TYPE_TO_CLASS.put(Dictionary.TYPE_USER, UserBinaryDictionary.class);
 //        DICT_TYPE_TO_CLASS.put(Dictionary.TYPE_CONTACTS, ContactsBinaryDictionary.class);
 //        DICT_TYPE_TO_CLASS.put(Dictionary.TYPE_CONTEXTUAL, ContextualDictionary.class);
-//    }
+    }
+
+    // How long the sub dictionaries are waited for when ENABLE_PARALLEL_DICTIONARY_LOOKUP is
+    // set. They are looked up on the lookup lane while the main dictionary is looked up on the
+    // calling thread.
+    private static final long LOOKUP_DEADLINE_MILLIS = 20;
 
     private static final String DICT_FACTORY_METHOD_NAME = "getDictionary";
     private static final Class<?>[] DICT_FACTORY_METHOD_ARG_TYPES =
@@ -278,13 +314,16 @@ public class DictionaryFacilitator {
         oldDictionaries.mSubDictMap.clear();
     }
 
+    /**
+     * The main dictionary is loaded in two stages on the load lane. The first one maps it, after
+     * which it can be looked up and the readiness future is done. The second one reads ahead
+     * what the first lookups need; lookups do not wait for it.
+     */
     private void asyncReloadMainDictionary(final Context context, final Locale locale,
             final DictionaryInitializationListener listener) {
-        final CountDownLatch latchForWaitingLoadingMainDictionary = new CountDownLatch(1);
-        mLatchForWaitingLoadingMainDictionary = latchForWaitingLoadingMainDictionary;
-        ExecutorUtils.getExecutor("InitializeBinaryDictionary").execute(new Runnable() {
+        final FutureTask<Boolean> readiness = new FutureTask<>(new Callable<Boolean>() {
             @Override
-            public void run() {
+            public Boolean call() {
                 final Dictionary mainDict =
                         DictionaryFactory.createDictionary(context, locale);
                 synchronized (mLock) {
@@ -295,14 +334,37 @@ public class DictionaryFacilitator {
                         mainDict.close();
                     }
                 }
+                final boolean isMainDictionaryAvailable = hasInitializedMainDictionary();
                 if (listener != null) {
-                    listener.onUpdateMainDictionaryAvailability(hasInitializedMainDictionary());
+                    listener.onUpdateMainDictionaryAvailability(isMainDictionaryAvailable);
+                }
+                return isMainDictionaryAvailable;
+            }
+        });
+        mMainDictionaryReadiness = readiness;
+        ExecutorUtils.DICTIONARY_LOAD.execute(readiness);
+        ExecutorUtils.DICTIONARY_LOAD.executeDroppable(new Runnable() {
+            @Override
+            public void run() {
+                final Dictionary mainDict = mDictionaries.getDict(Dictionary.TYPE_MAIN);
+                if (mainDict != null) {
+                    mainDict.warmUp();
                 }
-                latchForWaitingLoadingMainDictionary.countDown();
             }
         });
     }
 
+    /**
+     * @return a future that is done once the main dictionary being loaded, if any, can be looked
+     * up or has failed to load. Its value is whether the main dictionary is available. Input
+     * that comes while it is not done can wait for
+     * {@link DictionaryInitializationListener#onUpdateMainDictionaryAvailability} rather than be
+     * handled without the dictionary.
+     */
+    public Future<Boolean> getMainDictionaryReadiness() {
+        return mMainDictionaryReadiness;
+    }
+
 
     public void closeDictionaries() {
         final Dictionaries dictionaries;
@@ -316,6 +378,16 @@ public class DictionaryFacilitator {
         mDistracterFilter.close();
     }
 
+    public void onTrimMemory(final int level) {
+        final Dictionaries dictionaries = mDictionaries;
+        for (final String dictType : DICT_TYPES_ORDERED_TO_GET_SUGGESTIONS) {
+            final Dictionary dictionary = dictionaries.getDict(dictType);
+            if (dictionary != null) {
+                dictionary.onTrimMemory(level);
+            }
+        }
+    }
+
     // The main dictionary could have been loaded asynchronously.  Don't cache the return value
     // of this method.
     public boolean hasInitializedMainDictionary() {
@@ -330,40 +402,201 @@ public class DictionaryFacilitator {
     private void removeWord(final String dictName, final String word) {
         final WubiDictionary dictionary = mDictionaries.getSubDict(dictName);
         if (dictionary != null) {
-//            dictionary.removeUnigramEntryDynamically(word);
+            dictionary.removeUnigramEntryDynamically(word);
         }
     }
 
     public void removeWordFromPersonalizedDicts(final String word) {
+        final Dictionary mainDict = mDictionaries.getDict(Dictionary.TYPE_MAIN);
+        if (mainDict instanceof WubiDictionary) {
+            ((WubiDictionary) mainDict).removeUnigramEntryDynamically(word);
+        }
         removeWord(Dictionary.TYPE_USER_HISTORY, word);
         removeWord(Dictionary.TYPE_PERSONALIZATION, word);
         removeWord(Dictionary.TYPE_CONTEXTUAL, word);
     }
 
+    /**
+     * The returned results are reused by the next call made on the same thread, so they must be
+     * copied out before that.
+     */
     // TODO: Revise the way to fusion suggestion results.
     public SuggestionResults getSuggestionResults(final WordComposer composer,
             final PrevWordsInfo prevWordsInfo, final ProximityInfo proximityInfo,
             final SettingsValuesForSuggestion settingsValuesForSuggestion, final int sessionId) {
+        final long lookupStartTime = StatsUtils.onLookupStarted();
         final Dictionaries dictionaries = mDictionaries;
-        final SuggestionResults suggestionResults = new SuggestionResults(
-                dictionaries.mLocale, SuggestedWords.MAX_SUGGESTIONS,
+        final SuggestionResults suggestionResults = mSuggestionResults.get();
+        suggestionResults.reset(dictionaries.mLocale,
                 prevWordsInfo.mPrevWordsInfo[0].mIsBeginningOfSentence);
+        if (ProductionFlags.ENABLE_PARALLEL_DICTIONARY_LOOKUP) {
+            getSuggestionResultsInParallel(dictionaries, composer, prevWordsInfo, proximityInfo,
+                    settingsValuesForSuggestion, sessionId, suggestionResults);
+            StatsUtils.onLookupDone(lookupStartTime);
+            return suggestionResults;
+        }
         final float[] languageWeight = new float[] { Dictionary.NOT_A_LANGUAGE_WEIGHT };
+        for (final String dictType : DICT_TYPES_ORDERED_TO_GET_SUGGESTIONS) {
+            final Dictionary dictionary = dictionaries.getDict(dictType);
+            if (null == dictionary) continue;
+            addSuggestions(suggestionResults, dictionary.getSuggestions(composer, prevWordsInfo,
+                    proximityInfo, settingsValuesForSuggestion, sessionId, languageWeight));
+        }
+        StatsUtils.onLookupDone(lookupStartTime);
+        return suggestionResults;
+    }
+
+    /**
+     * Looks up the sub dictionaries on the lookup lane while the main dictionary is looked up on
+     * the calling thread, and merges the results as they arrive. A sub dictionary that has not
+     * answered within LOOKUP_DEADLINE_MILLIS of the fan-out is skipped. The main dictionary is
+     * always waited for, as the strip is of no use without it.
+     */
+    private static void getSuggestionResultsInParallel(final Dictionaries dictionaries,
+            final WordComposer composer, final PrevWordsInfo prevWordsInfo,
+            final ProximityInfo proximityInfo,
+            final SettingsValuesForSuggestion settingsValuesForSuggestion, final int sessionId,
+            final SuggestionResults outSuggestionResults) {
+        final long deadline = SystemClock.uptimeMillis() + LOOKUP_DEADLINE_MILLIS;
+        final CompletionService<ArrayList<SuggestedWordInfo>> completionService =
+                new ExecutorCompletionService<>(ExecutorUtils.DICTIONARY_LOOKUP.getExecutor());
+        final ArrayList<Future<ArrayList<SuggestedWordInfo>>> futures = new ArrayList<>();
+        for (final String dictType : SUB_DICT_TYPES) {
+            final Dictionary dictionary = dictionaries.getDict(dictType);
+            if (null == dictionary) continue;
+            futures.add(completionService.submit(new Callable<ArrayList<SuggestedWordInfo>>() {
+                @Override
+                public ArrayList<SuggestedWordInfo> call() {
+                    return dictionary.getSuggestions(composer, prevWordsInfo, proximityInfo,
+                            settingsValuesForSuggestion, sessionId,
+                            new float[] { Dictionary.NOT_A_LANGUAGE_WEIGHT });
+                }
+            }));
+        }
+        final Dictionary mainDict = dictionaries.getDict(Dictionary.TYPE_MAIN);
+        if (null != mainDict) {
+            addSuggestions(outSuggestionResults, mainDict.getSuggestions(composer, prevWordsInfo,
+                    proximityInfo, settingsValuesForSuggestion, sessionId,
+                    new float[] { Dictionary.NOT_A_LANGUAGE_WEIGHT }));
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                final Future<ArrayList<SuggestedWordInfo>> future = completionService.poll(
+                        Math.max(deadline - SystemClock.uptimeMillis(), 0),
+                        TimeUnit.MILLISECONDS);
+                if (null == future) {
+                    Log.w(TAG, "Skipping " + (futures.size() - i)
+                            + " dictionaries that missed the deadline");
+                    break;
+                }
+                try {
+                    addSuggestions(outSuggestionResults, future.get());
+                } catch (final ExecutionException e) {
+                    Log.e(TAG, "Dictionary lookup failed", e);
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (final Future<ArrayList<SuggestedWordInfo>> future : futures) {
+                // A lookup that has not started yet is dropped. One that is running can not be
+                // interrupted, as the dictionaries do not check for it.
+                future.cancel(false /* mayInterruptIfRunning */);
+            }
+        }
+    }
+
+    private static void addSuggestions(final SuggestionResults suggestionResults,
+            final ArrayList<SuggestedWordInfo> dictionarySuggestions) {
+        if (null == dictionarySuggestions) return;
+        suggestionResults.addAll(dictionarySuggestions);
+        if (null != suggestionResults.mRawSuggestions) {
+            suggestionResults.mRawSuggestions.addAll(dictionarySuggestions);
+        }
+    }
+
+    /**
+     * Gets the suggestions for the composing word without computing anything, from what the
+     * dictionaries hold in memory. Cheap enough to be called on the UI thread.
+     * @return the suggestions, or null if a dictionary does not have them in memory, in which
+     * case {@link #getSuggestionResults} has to be called. Like those of
+     * {@link #getSuggestionResults}, they are reused by the next call on the same thread.
+     */
+    public SuggestionResults getCachedSuggestionResults(final String typedWord) {
+        final long lookupStartTime = StatsUtils.onLookupStarted();
+        final Dictionaries dictionaries = mDictionaries;
+        final SuggestionResults suggestionResults = mSuggestionResults.get();
+        suggestionResults.reset(dictionaries.mLocale, false /* isBeginningOfSentence */);
         for (final String dictType : DICT_TYPES_ORDERED_TO_GET_SUGGESTIONS) {
             final Dictionary dictionary = dictionaries.getDict(dictType);
             if (null == dictionary) continue;
             final ArrayList<SuggestedWordInfo> dictionarySuggestions =
-                    dictionary.getSuggestions(composer, prevWordsInfo, proximityInfo,
-                            settingsValuesForSuggestion, sessionId, languageWeight);
-            if (null == dictionarySuggestions) continue;
-            suggestionResults.addAll(dictionarySuggestions);
-            if (null != suggestionResults.mRawSuggestions) {
-                suggestionResults.mRawSuggestions.addAll(dictionarySuggestions);
+                    dictionary.getCachedSuggestions(typedWord);
+            if (null == dictionarySuggestions) {
+                return null;
             }
+            addSuggestions(suggestionResults, dictionarySuggestions);
         }
+        StatsUtils.onLookupDone(lookupStartTime);
         return suggestionResults;
     }
 
+    /**
+     * Builds ahead of time the suggestions of a word that may be typed next. Only the main
+     * dictionary computes its suggestions; the others keep them all in memory.
+     */
+    public void prefetchSuggestions(final String typedWord) {
+        final Dictionary mainDict = mDictionaries.getDict(Dictionary.TYPE_MAIN);
+        if (mainDict instanceof WubiDictionary) {
+            ((WubiDictionary) mainDict).prefetchCandidates(typedWord);
+        }
+    }
+
+    /**
+     * @return false if no dictionary has a suggestion for the typed word, in which case
+     * {@link #getSuggestionResults} can be skipped.
+     */
+    public boolean mayHaveSuggestionsFor(final String typedWord) {
+        final Dictionaries dictionaries = mDictionaries;
+        for (final String dictType : DICT_TYPES_ORDERED_TO_GET_SUGGESTIONS) {
+            final Dictionary dictionary = dictionaries.getDict(dictType);
+            if (dictionary != null && dictionary.mayHaveSuggestionsFor(typedWord)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Learns that the word was committed for the typed word. Does not block on I/O. The user
+     * history only learns the words of the typed code itself, which it suggests first; a word of
+     * a longer code is only moved among the words of its code by the main dictionary.
+     */
+    public void addToUserHistory(final String typedWord, final String committedWord,
+            final PrevWordsInfo prevWordsInfo) {
+        final Dictionaries dictionaries = mDictionaries;
+        final Dictionary mainDict = dictionaries.getDict(Dictionary.TYPE_MAIN);
+        if (!(mainDict instanceof WubiDictionary)) {
+            return;
+        }
+        final WubiDictionary wubiDict = (WubiDictionary) mainDict;
+        wubiDict.addToUserHistory(typedWord, committedWord);
+        final WubiDictionary userHistoryDict =
+                dictionaries.getSubDict(Dictionary.TYPE_USER_HISTORY);
+        if (userHistoryDict != null && wubiDict.isWordOfCode(typedWord, committedWord)) {
+            userHistoryDict.addToUserHistory(typedWord, committedWord);
+        }
+    }
+
+    /**
+     * @return the word to commit as soon as the typed word is complete, or null. Only the main
+     * dictionary decides: the other dictionaries only hold words that it has too.
+     */
+    public String getUniqueSuggestion(final String typedWord) {
+        final Dictionary mainDict = mDictionaries.getDict(Dictionary.TYPE_MAIN);
+        return mainDict == null ? null : mainDict.getUniqueSuggestion(typedWord);
+    }
+
     public boolean isValidWord(final String word, final boolean ignoreCase) {
         if (TextUtils.isEmpty(word)) {
             return false;
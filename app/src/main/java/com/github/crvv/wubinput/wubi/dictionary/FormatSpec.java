@@ -0,0 +1,135 @@
+package com.github.crvv.wubinput.wubi.dictionary;
+
+/**
+ * Layout of the compiled Wubi dictionary, res/raw/wubi.dict, written by tool/MakeDict.java.
+ *
+ * All integers are big-endian.
+ *
+ * header           magic, version, code count, word count, code table offset,
+ *                  word table offset, word pool offset, word pool size,
+ *                  prefix bitmap offset, unique code bitmap offset, association key count,
+ *                  association key table offset, association start table offset,
+ *                  association table offset (14 ints)
+ * code table       packed codes, sorted ascending (code count ints),
+ *                  followed by the index of the first word of each code (code count + 1 ints)
+ * word table       byte offset of each word in the pool (word count + 1 ints)
+ * word pool        UTF-8 bytes of every word, in code order and from the most to the least
+ *                  frequent within a code
+ * prefix bitmap    one bit per code of up to 4 letters, set if some code starts with it, 'z'
+ *                  matching any letter (PREFIX_BITMAP_SIZE bytes, see getPrefixIndex)
+ * unique code      same layout, set for the codes of MAX_CODE_LENGTH letters that match
+ * bitmap           exactly one word, 'z' matching any letter (PREFIX_BITMAP_SIZE bytes),
+ *                  padded to a multiple of INT_SIZE
+ * association      index of each word that other words of the dictionary start with, sorted
+ * key table        by UTF-8 bytes (association key count ints)
+ * association      index in the association table of the first successor of each key
+ * start table      (association key count + 1 ints)
+ * association      index of each successor, the longer words starting with the key, from the
+ * table            most to the least frequent
+ */
+public final class FormatSpec {
+    private FormatSpec() {
+        // This class is not publicly instantiable.
+    }
+
+    public static final int MAGIC_NUMBER = 0x57554249; // "WUBI"
+    public static final int VERSION = 6;
+
+    public static final int HEADER_MAGIC_OFFSET = 0;
+    public static final int HEADER_VERSION_OFFSET = 4;
+    public static final int HEADER_CODE_COUNT_OFFSET = 8;
+    public static final int HEADER_WORD_COUNT_OFFSET = 12;
+    public static final int HEADER_CODE_TABLE_OFFSET = 16;
+    public static final int HEADER_WORD_TABLE_OFFSET = 20;
+    public static final int HEADER_WORD_POOL_OFFSET = 24;
+    public static final int HEADER_WORD_POOL_SIZE_OFFSET = 28;
+    public static final int HEADER_PREFIX_BITMAP_OFFSET = 32;
+    public static final int HEADER_UNIQUE_CODE_BITMAP_OFFSET = 36;
+    public static final int HEADER_ASSOCIATION_KEY_COUNT_OFFSET = 40;
+    public static final int HEADER_ASSOCIATION_KEY_TABLE_OFFSET = 44;
+    public static final int HEADER_ASSOCIATION_START_TABLE_OFFSET = 48;
+    public static final int HEADER_ASSOCIATION_TABLE_OFFSET = 52;
+    public static final int HEADER_SIZE = 56;
+
+    public static final int INT_SIZE = 4;
+
+    public static final int MAX_CODE_LENGTH = 4;
+    public static final int BITS_PER_LETTER = 5;
+    public static final int LETTER_MASK = (1 << BITS_PER_LETTER) - 1;
+    public static final char WILDCARD_LETTER = 'z';
+    public static final int NOT_A_CODE = -1;
+
+    // A prefix is a number in base 27: 1..26 for the letters and 0 past its end.
+    private static final int PREFIX_RADIX = 27;
+    public static final int PREFIX_COUNT =
+            PREFIX_RADIX * PREFIX_RADIX * PREFIX_RADIX * PREFIX_RADIX;
+    public static final int PREFIX_BITMAP_SIZE = (PREFIX_COUNT + 7) / 8;
+
+    /**
+     * Packs a code into an int, one letter per 5 bits starting from the most significant end.
+     * Letters are stored as 1..26, so that a shorter code sorts before every longer code it is a
+     * prefix of, and the order of packed codes is the order of the code strings.
+     *
+     * @return the packed code, or NOT_A_CODE if the string is not a code.
+     */
+    public static int packCode(final CharSequence code) {
+        final int length = code.length();
+        if (length == 0 || length > MAX_CODE_LENGTH) {
+            return NOT_A_CODE;
+        }
+        int packed = 0;
+        for (int i = 0; i < length; i++) {
+            final int letter = getLetterValue(code.charAt(i));
+            if (letter == 0) {
+                return NOT_A_CODE;
+            }
+            packed |= letter << getLetterShift(i);
+        }
+        return packed;
+    }
+
+    /**
+     * @return the 1-based value of a code letter, or 0 if the char is not a code letter.
+     */
+    public static int getLetterValue(final char c) {
+        if (c < 'a' || c > 'z') {
+            return 0;
+        }
+        return c - 'a' + 1;
+    }
+
+    public static int getLetterShift(final int position) {
+        return BITS_PER_LETTER * (MAX_CODE_LENGTH - 1 - position);
+    }
+
+    /**
+     * @return the largest packed code that starts with the given packed prefix of length
+     * prefixLength.
+     */
+    public static int getLastCodeWithPrefix(final int packedPrefix, final int prefixLength) {
+        return packedPrefix | ((1 << getLetterShift(prefixLength - 1)) - 1);
+    }
+
+    /**
+     * @return the index of the code in the prefix bitmap, or NOT_A_CODE if the string is not a
+     * code.
+     */
+    public static int getPrefixIndex(final CharSequence code) {
+        final int length = code.length();
+        if (length == 0 || length > MAX_CODE_LENGTH) {
+            return NOT_A_CODE;
+        }
+        int index = 0;
+        for (int i = 0; i < MAX_CODE_LENGTH; i++) {
+            int letter = 0;
+            if (i < length) {
+                letter = getLetterValue(code.charAt(i));
+                if (letter == 0) {
+                    return NOT_A_CODE;
+                }
+            }
+            index = index * PREFIX_RADIX + letter;
+        }
+        return index;
+    }
+}
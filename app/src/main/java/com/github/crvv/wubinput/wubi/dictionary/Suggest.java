@@ -90,7 +90,10 @@ public final class Suggest {
         final boolean isOnlyFirstCharCapitalized =
                 wordComposer.isOrWillBeOnlyFirstCharCapitalized();
 
-        final ArrayList<SuggestedWords.SuggestedWordInfo> suggestionsContainer = new ArrayList<>(results);
+        // Room for the typed word, which is usually inserted first.
+        final ArrayList<SuggestedWords.SuggestedWordInfo> suggestionsContainer =
+                new ArrayList<>(results.size() + 1);
+        suggestionsContainer.addAll(results);
         final int suggestionsCount = suggestionsContainer.size();
         if (isOnlyFirstCharCapitalized || shouldMakeSuggestionsAllUpperCase
                 || 0 != trailingSingleQuotesCount) {
@@ -123,15 +126,44 @@ public final class Suggest {
             final SettingsValuesForSuggestion settingsValuesForSuggestion,
             final int inputStyleIfNotPrediction, final boolean isCorrectionEnabled,
             final int sequenceNumber, final OnGetSuggestedWordsCallback callback) {
+        final SuggestionResults suggestionResults = mDictionaryFacilitator.getSuggestionResults(
+                wordComposer, prevWordsInfo, proximityInfo, settingsValuesForSuggestion,
+                SESSION_ID_TYPING);
+        callback.onGetSuggestedWords(getSuggestedWordsForNonBatchInput(wordComposer,
+                suggestionResults, inputStyleIfNotPrediction, isCorrectionEnabled,
+                sequenceNumber));
+    }
+
+    /**
+     * Gets the suggestions for the composing word from what the dictionaries hold in memory,
+     * without computing anything. Cheap enough to be called on the UI thread.
+     * @return the suggestions, or null if they have to be fetched with
+     * {@link #getSuggestedWords}.
+     */
+    public SuggestedWords getCachedSuggestedWords(final WordComposer wordComposer,
+            final int inputStyle) {
+        if (!wordComposer.isComposingWord() || wordComposer.isBatchMode()) {
+            return null;
+        }
+        final SuggestionResults suggestionResults =
+                mDictionaryFacilitator.getCachedSuggestionResults(wordComposer.getTypedWord());
+        if (null == suggestionResults) {
+            return null;
+        }
+        return getSuggestedWordsForNonBatchInput(wordComposer, suggestionResults, inputStyle,
+                false /* isCorrectionEnabled */, SuggestedWords.NOT_A_SEQUENCE_NUMBER);
+    }
+
+    // Makes the suggestions for non-batch input out of the results of the dictionaries.
+    private SuggestedWords getSuggestedWordsForNonBatchInput(final WordComposer wordComposer,
+            final SuggestionResults suggestionResults, final int inputStyleIfNotPrediction,
+            final boolean isCorrectionEnabled, final int sequenceNumber) {
         final String typedWord = wordComposer.getTypedWord();
         final int trailingSingleQuotesCount = StringUtils.getTrailingSingleQuotesCount(typedWord);
         final String consideredWord = trailingSingleQuotesCount > 0
                 ? typedWord.substring(0, typedWord.length() - trailingSingleQuotesCount)
                 : typedWord;
 
-        final SuggestionResults suggestionResults = mDictionaryFacilitator.getSuggestionResults(
-                wordComposer, prevWordsInfo, proximityInfo, settingsValuesForSuggestion,
-                SESSION_ID_TYPING);
         final ArrayList<SuggestedWords.SuggestedWordInfo> suggestionsContainer =
                 getTransformedSuggestedWordInfoList(wordComposer, suggestionResults,
                         trailingSingleQuotesCount);
@@ -194,14 +226,14 @@ public final class Suggest {
         } else {
             inputStyle = inputStyleIfNotPrediction;
         }
-        callback.onGetSuggestedWords(new SuggestedWords(suggestionsList,
+        return new SuggestedWords(suggestionsList,
                 suggestionResults.mRawSuggestions,
                 // TODO: this first argument is lying. If this is a whitelisted word which is an
                 // actual word, it says typedWordValid = false, which looks wrong. We should either
                 // rename the attribute or change the value.
                 !resultsArePredictions && !allowsToBeAutoCorrected /* typedWordValid */,
                 hasAutoCorrection /* willAutoCorrect */,
-                false /* isObsoleteSuggestions */, inputStyle, sequenceNumber));
+                false /* isObsoleteSuggestions */, inputStyle, sequenceNumber);
     }
 
     // Retrieves suggestions for the batch input
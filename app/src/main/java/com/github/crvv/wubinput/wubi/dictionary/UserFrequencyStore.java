@@ -0,0 +1,321 @@
+package com.github.crvv.wubinput.wubi.dictionary;
+
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import com.github.crvv.wubinput.wubi.utils.ExecutorUtils;
+import com.github.crvv.wubinput.wubi.utils.ResizableIntArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Counts how many times the user committed each word of the main dictionary.
+ *
+ * Counts live in memory and are keyed by word index. Every commit is also queued and written to
+ * an append-only log on a background executor once enough of them are pending, so recording a
+ * commit never touches the disk on the calling thread. When the log holds many more records than
+ * there are counted words, it is rewritten with one record per word.
+ *
+ * The log starts with the magic number, its version and the word count and word pool size of the
+ * dictionary it was written for, since word indices are only meaningful for that dictionary. Each
+ * record is a word index followed by the number of commits to add to it, or by 0 for a word the
+ * user made the store forget.
+ *
+ * There is one store per log in the process, handed over from a dictionary to the one reloaded
+ * after it, so that two stores never write the same log. The log is only compacted once it has
+ * been read, and pending commits are only dropped once they are written.
+ */
+final class UserFrequencyStore {
+    private static final String TAG = UserFrequencyStore.class.getSimpleName();
+
+    private static final int MAGIC_NUMBER = 0x57554246; // "WUBF"
+    private static final int VERSION = 1;
+    // Commits kept in memory before the log is appended to.
+    private static final int FLUSH_BATCH_SIZE = 16;
+    // The log is compacted when it has this many records per counted word, and at least
+    // MIN_RECORD_COUNT_TO_COMPACT records.
+    private static final int COMPACTION_RATIO = 4;
+    private static final int MIN_RECORD_COUNT_TO_COMPACT = 1024;
+
+    // Guarded by the class.
+    private static UserFrequencyStore sInstance;
+
+    private final File mFile;
+    private final int mDictionaryWordCount;
+    private final int mDictionaryWordPoolSize;
+    private volatile Runnable mOnLoaded;
+
+    // mCounts and mPendingWordIndices are guarded by this. A forgotten word is pending as
+    // -1 - its index. mRecordCountOnDisk is only used on the executor thread.
+    private final SparseIntArray mCounts = new SparseIntArray();
+    private final ResizableIntArray mPendingWordIndices = new ResizableIntArray(FLUSH_BATCH_SIZE);
+    private int mRecordCountOnDisk;
+    // Whether the counts of the log were read. Until then the log may hold counts that mCounts
+    // lacks, so it must not be compacted and no word can be forgotten.
+    private volatile boolean mIsLoaded;
+
+    private UserFrequencyStore(final File file, final WubiDictionaryFile dictionaryFile,
+            final Runnable onLoaded) {
+        mFile = file;
+        mDictionaryWordCount = dictionaryFile.getWordCount();
+        mDictionaryWordPoolSize = dictionaryFile.getWordPoolSize();
+        mOnLoaded = onLoaded;
+        ExecutorUtils.USER_HISTORY.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                mOnLoaded.run();
+            }
+        });
+    }
+
+    /**
+     * Returns the store of the log, creating it if it does not exist yet or was for another
+     * dictionary. An existing store is handed over with its counts and pending commits.
+     * @param onLoaded run on the executor thread once the counts of the log have been read. Not
+     * run if the store already exists.
+     */
+    public static synchronized UserFrequencyStore getInstance(final File file,
+            final WubiDictionaryFile dictionaryFile, final Runnable onLoaded) {
+        final UserFrequencyStore store = sInstance;
+        if (store != null && store.mFile.equals(file)
+                && store.mDictionaryWordCount == dictionaryFile.getWordCount()
+                && store.mDictionaryWordPoolSize == dictionaryFile.getWordPoolSize()) {
+            // If the load is still running, the new dictionary is told when it is done.
+            store.mOnLoaded = onLoaded;
+            return store;
+        }
+        if (store != null) {
+            store.flush();
+        }
+        sInstance = new UserFrequencyStore(file, dictionaryFile, onLoaded);
+        return sInstance;
+    }
+
+    public synchronized int getCount(final int wordIndex) {
+        return mCounts.get(wordIndex);
+    }
+
+    /**
+     * Records one commit of the word. Thread-safe and never blocks on I/O.
+     */
+    public void addCommit(final int wordIndex) {
+        final boolean shouldFlush;
+        synchronized (this) {
+            mCounts.put(wordIndex, mCounts.get(wordIndex) + 1);
+            mPendingWordIndices.add(wordIndex);
+            shouldFlush = mPendingWordIndices.getLength() >= FLUSH_BATCH_SIZE;
+        }
+        if (shouldFlush) {
+            flush();
+        }
+    }
+
+    /**
+     * Forgets every commit of the word. Does nothing until the log has been read, as the commits
+     * it holds would come back. Thread-safe and never blocks on I/O.
+     * @return whether the word had commits.
+     */
+    public boolean forget(final int wordIndex) {
+        if (!mIsLoaded) {
+            return false;
+        }
+        synchronized (this) {
+            if (mCounts.get(wordIndex) == 0) {
+                return false;
+            }
+            mCounts.delete(wordIndex);
+            mPendingWordIndices.add(-1 - wordIndex);
+        }
+        // Forgetting is rare and usually wanted right away.
+        flush();
+        return true;
+    }
+
+    /**
+     * @return the indices of the words that have commits.
+     */
+    public synchronized int[] getCountedWordIndices() {
+        final int[] wordIndices = new int[mCounts.size()];
+        for (int i = 0; i < wordIndices.length; i++) {
+            wordIndices[i] = mCounts.keyAt(i);
+        }
+        return wordIndices;
+    }
+
+    /**
+     * Writes the pending commits in the background. A flush may be dropped when the lane is
+     * busy, as the flushes already queued write the same commits.
+     */
+    public void flush() {
+        ExecutorUtils.USER_HISTORY.executeDroppable(new Runnable() {
+            @Override
+            public void run() {
+                writePendingCommits();
+            }
+        });
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            mIsLoaded = true;
+            return;
+        }
+        final SparseIntArray counts = new SparseIntArray();
+        int recordCount = 0;
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                if (in.readInt() != MAGIC_NUMBER || in.readInt() != VERSION
+                        || in.readInt() != mDictionaryWordCount
+                        || in.readInt() != mDictionaryWordPoolSize) {
+                    Log.i(TAG, "Discarding the counts of another dictionary");
+                    mFile.delete();
+                    mIsLoaded = true;
+                    return;
+                }
+                while (true) {
+                    final int wordIndex;
+                    final int count;
+                    try {
+                        wordIndex = in.readInt();
+                        count = in.readInt();
+                    } catch (final EOFException e) {
+                        // Also drops a record cut short by the process being killed.
+                        break;
+                    }
+                    if (wordIndex >= 0 && wordIndex < mDictionaryWordCount) {
+                        if (count > 0) {
+                            counts.put(wordIndex, counts.get(wordIndex) + count);
+                        } else if (count == 0) {
+                            counts.delete(wordIndex);
+                        }
+                    }
+                    recordCount++;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            // Left there, the file would stop learning until it is deleted.
+            Log.e(TAG, "Discarding the unreadable " + mFile, e);
+            mFile.delete();
+            mRecordCountOnDisk = 0;
+            mIsLoaded = true;
+            return;
+        }
+        synchronized (this) {
+            // Commits recorded before the log was read are already pending.
+            for (int i = 0; i < counts.size(); i++) {
+                final int wordIndex = counts.keyAt(i);
+                mCounts.put(wordIndex, mCounts.get(wordIndex) + counts.valueAt(i));
+            }
+        }
+        mRecordCountOnDisk = recordCount;
+        mIsLoaded = true;
+    }
+
+    private void writePendingCommits() {
+        final int[] wordIndices;
+        final int[] counts;
+        final boolean shouldCompact;
+        final int pendingCount;
+        synchronized (this) {
+            pendingCount = mPendingWordIndices.getLength();
+            if (pendingCount == 0) {
+                return;
+            }
+            shouldCompact = mIsLoaded
+                    && mRecordCountOnDisk + pendingCount >= MIN_RECORD_COUNT_TO_COMPACT
+                    && mRecordCountOnDisk + pendingCount >= mCounts.size() * COMPACTION_RATIO;
+            if (shouldCompact) {
+                // The counts already include the pending commits.
+                wordIndices = new int[mCounts.size()];
+                counts = new int[mCounts.size()];
+                for (int i = 0; i < wordIndices.length; i++) {
+                    wordIndices[i] = mCounts.keyAt(i);
+                    counts[i] = mCounts.valueAt(i);
+                }
+            } else {
+                wordIndices = new int[pendingCount];
+                System.arraycopy(mPendingWordIndices.getPrimitiveArray(), 0, wordIndices, 0,
+                        pendingCount);
+                counts = null;
+            }
+        }
+        try {
+            if (shouldCompact) {
+                compact(wordIndices, counts);
+            } else {
+                append(wordIndices);
+            }
+        } catch (final IOException e) {
+            // The commits stay pending, for the next flush to write them.
+            Log.e(TAG, "Cannot write " + mFile, e);
+            return;
+        }
+        synchronized (this) {
+            // Commits recorded while writing stay pending.
+            mPendingWordIndices.shift(pendingCount);
+        }
+    }
+
+    private void append(final int[] wordIndices) throws IOException {
+        final boolean isNewFile = !mFile.exists();
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(mFile, true /* append */)));
+        try {
+            if (isNewFile) {
+                writeHeader(out);
+            }
+            for (final int wordIndex : wordIndices) {
+                if (wordIndex >= 0) {
+                    out.writeInt(wordIndex);
+                    out.writeInt(1);
+                } else {
+                    out.writeInt(-1 - wordIndex);
+                    out.writeInt(0);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        mRecordCountOnDisk += wordIndices.length;
+    }
+
+    private void compact(final int[] wordIndices, final int[] counts) throws IOException {
+        final File tempFile = new File(mFile.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            writeHeader(out);
+            for (int i = 0; i < wordIndices.length; i++) {
+                out.writeInt(wordIndices[i]);
+                out.writeInt(counts[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("Cannot rename " + tempFile);
+        }
+        mRecordCountOnDisk = wordIndices.length;
+    }
+
+    private void writeHeader(final DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC_NUMBER);
+        out.writeInt(VERSION);
+        out.writeInt(mDictionaryWordCount);
+        out.writeInt(mDictionaryWordPoolSize);
+    }
+}
@@ -0,0 +1,404 @@
+package com.github.crvv.wubinput.wubi.dictionary;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.github.crvv.wubinput.keyboard.ProximityInfo;
+import com.github.crvv.wubinput.wubi.PrevWordsInfo;
+import com.github.crvv.wubinput.wubi.WordComposer;
+import com.github.crvv.wubinput.wubi.dictionary.SuggestedWords.SuggestedWordInfo;
+import com.github.crvv.wubinput.wubi.settings.SettingsValuesForSuggestion;
+import com.github.crvv.wubinput.wubi.utils.ExecutorUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which words the user committed for each typed code, and suggests them first the
+ * next time the same code is typed. Only the words of the typed code itself are learned, see
+ * {@link DictionaryFacilitator#addToUserHistory}, so a word never moves in front of the words of
+ * another code.
+ *
+ * The history is read on a background executor when the dictionary is created and suggests
+ * nothing until then. Lookups only read a map of prebuilt suggestions. Changes are queued as
+ * records and appended to the file in batches on the executor; the file is rewritten from memory
+ * once it holds many more records than there are words.
+ *
+ * The file starts with the magic number and its version, followed by records: an op byte, then
+ * for OP_ADD the code, the word and the count to add, and for OP_REMOVE the word to forget under
+ * every code. Strings are written with {@link DataOutputStream#writeUTF}.
+ */
+public class UserHistoryDictionary extends WubiDictionary {
+    private static final String TAG = UserHistoryDictionary.class.getSimpleName();
+    private static final String NAME = "UserHistory";
+
+    private static final int MAGIC_NUMBER = 0x57554248; // "WUBH"
+    // Version 1 also held words of longer codes, which are no longer learned.
+    private static final int VERSION = 2;
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int FLUSH_BATCH_SIZE = 16;
+    private static final int COMPACTION_RATIO = 4;
+    private static final int MIN_RECORD_COUNT_TO_COMPACT = 1024;
+
+    // Above the scores of the main dictionary. The words of the typed code itself come first in
+    // the main dictionary too, so this only moves the words of the history first among them.
+    private static final int HISTORY_SCORE = 2000;
+    private static final int MAX_WORDS_PER_CODE = 3;
+
+    private static final class HistoryWord {
+        public final String mWord;
+        public int mCount;
+
+        public HistoryWord(final String word, final int count) {
+            mWord = word;
+            mCount = count;
+        }
+    }
+
+    private final File mFile;
+    private volatile boolean mIsLoaded;
+    // mWordsByCode, mPendingRecords and mPendingRecordCount are guarded by this. Each list of
+    // words is sorted by decreasing count, the most recently committed first among equal counts.
+    private final HashMap<String, ArrayList<HistoryWord>> mWordsByCode = new HashMap<>();
+    private final ByteArrayOutputStream mPendingRecords = new ByteArrayOutputStream();
+    private final DataOutputStream mPendingRecordsOut = new DataOutputStream(mPendingRecords);
+    private int mPendingRecordCount;
+    // Only used on the executor thread.
+    private int mRecordCountOnDisk;
+    // What lookups read, rebuilt for a code whenever its words change.
+    private final ConcurrentHashMap<String, SuggestedWordInfo[]> mSuggestionsByCode =
+            new ConcurrentHashMap<>();
+
+    private UserHistoryDictionary(final File file) {
+        super(Dictionary.TYPE_USER_HISTORY);
+        mFile = file;
+        ExecutorUtils.USER_HISTORY.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    // Note: This method is called by {@link DictionaryFacilitator} using Java reflection.
+    @SuppressWarnings("unused")
+    public static UserHistoryDictionary getDictionary(final Context context, final Locale locale,
+            final File dictFile, final String dictNamePrefix) {
+        final File file = dictFile != null ? dictFile
+                : new File(context.getFilesDir(), dictNamePrefix + NAME + "." + locale);
+        return new UserHistoryDictionary(file);
+    }
+
+    @Override
+    public ArrayList<SuggestedWordInfo> getSuggestions(final WordComposer composer,
+            final PrevWordsInfo prevWordsInfo, final ProximityInfo proximityInfo,
+            final SettingsValuesForSuggestion settingsValuesForSuggestion,
+            final int sessionId, final float[] inOutLanguageWeight) {
+        final String typedWord = composer.getTypedWord();
+        final SuggestedWordInfo[] suggestions =
+                typedWord == null ? null : mSuggestionsByCode.get(typedWord);
+        if (suggestions == null) {
+            return null;
+        }
+        final ArrayList<SuggestedWordInfo> result = new ArrayList<>(suggestions.length);
+        Collections.addAll(result, suggestions);
+        return result;
+    }
+
+    @Override
+    public ArrayList<SuggestedWordInfo> getCachedSuggestions(final String typedWord) {
+        // All the words are in memory.
+        final SuggestedWordInfo[] suggestions =
+                typedWord == null ? null : mSuggestionsByCode.get(typedWord);
+        final ArrayList<SuggestedWordInfo> result = new ArrayList<>();
+        if (suggestions != null) {
+            Collections.addAll(result, suggestions);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean mayHaveSuggestionsFor(final String typedWord) {
+        return typedWord != null && mSuggestionsByCode.containsKey(typedWord);
+    }
+
+    @Override
+    public String getUniqueSuggestion(final String typedWord) {
+        return null;
+    }
+
+    @Override
+    public boolean isInitialized() {
+        return mIsLoaded;
+    }
+
+    @Override
+    public void addToUserHistory(final String typedWord, final String word) {
+        // Commits made before the file is read are not learned, so that replaying the file never
+        // has to be merged with newer changes.
+        if (!mIsLoaded || typedWord == null || typedWord.isEmpty() || word.isEmpty()) {
+            return;
+        }
+        final boolean shouldFlush;
+        synchronized (this) {
+            addWord(typedWord, word, 1);
+            try {
+                mPendingRecordsOut.writeByte(OP_ADD);
+                mPendingRecordsOut.writeUTF(typedWord);
+                mPendingRecordsOut.writeUTF(word);
+                mPendingRecordsOut.writeInt(1);
+            } catch (final IOException e) {
+                // Cannot happen with a ByteArrayOutputStream.
+            }
+            shouldFlush = ++mPendingRecordCount >= FLUSH_BATCH_SIZE;
+        }
+        if (shouldFlush) {
+            flush();
+        }
+    }
+
+    @Override
+    public void removeUnigramEntryDynamically(final String word) {
+        if (!mIsLoaded) {
+            return;
+        }
+        synchronized (this) {
+            if (!removeWord(word)) {
+                return;
+            }
+            try {
+                mPendingRecordsOut.writeByte(OP_REMOVE);
+                mPendingRecordsOut.writeUTF(word);
+            } catch (final IOException e) {
+                // Cannot happen with a ByteArrayOutputStream.
+            }
+            mPendingRecordCount++;
+        }
+        // Forgetting is rare and usually wanted right away.
+        flush();
+    }
+
+    @Override
+    public void onTrimMemory(final int level) {
+        flush();
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    private void flush() {
+        ExecutorUtils.USER_HISTORY.executeDroppable(new Runnable() {
+            @Override
+            public void run() {
+                writePendingRecords();
+            }
+        });
+    }
+
+    // Must be called with the lock held.
+    private void addWord(final String code, final String word, final int count) {
+        ArrayList<HistoryWord> words = mWordsByCode.get(code);
+        if (words == null) {
+            words = new ArrayList<>(MAX_WORDS_PER_CODE + 1);
+            mWordsByCode.put(code, words);
+        }
+        HistoryWord historyWord = null;
+        for (int i = 0; i < words.size(); i++) {
+            if (words.get(i).mWord.equals(word)) {
+                historyWord = words.remove(i);
+                break;
+            }
+        }
+        if (historyWord == null) {
+            historyWord = new HistoryWord(word, 0);
+        }
+        historyWord.mCount += count;
+        int position = 0;
+        while (position < words.size() && words.get(position).mCount > historyWord.mCount) {
+            position++;
+        }
+        words.add(position, historyWord);
+        if (words.size() > MAX_WORDS_PER_CODE) {
+            words.remove(words.size() - 1);
+        }
+        updateSuggestions(code, words);
+    }
+
+    // Must be called with the lock held.
+    private boolean removeWord(final String word) {
+        boolean removed = false;
+        final Iterator<Map.Entry<String, ArrayList<HistoryWord>>> iterator =
+                mWordsByCode.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, ArrayList<HistoryWord>> entry = iterator.next();
+            final ArrayList<HistoryWord> words = entry.getValue();
+            for (int i = 0; i < words.size(); i++) {
+                if (words.get(i).mWord.equals(word)) {
+                    words.remove(i);
+                    removed = true;
+                    if (words.isEmpty()) {
+                        iterator.remove();
+                    }
+                    updateSuggestions(entry.getKey(), words);
+                    break;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private void updateSuggestions(final String code, final ArrayList<HistoryWord> words) {
+        if (words.isEmpty()) {
+            mSuggestionsByCode.remove(code);
+            return;
+        }
+        final SuggestedWordInfo[] suggestions = new SuggestedWordInfo[words.size()];
+        for (int i = 0; i < suggestions.length; i++) {
+            suggestions[i] = new SuggestedWordInfo(words.get(i).mWord, HISTORY_SCORE - i,
+                    SuggestedWordInfo.KIND_CORRECTION, this, i, 1);
+        }
+        mSuggestionsByCode.put(code, suggestions);
+    }
+
+    private void load() {
+        if (mFile.exists()) {
+            try {
+                final DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(mFile)));
+                try {
+                    if (in.readInt() != MAGIC_NUMBER || in.readInt() != VERSION) {
+                        throw new IOException("Unknown file format");
+                    }
+                    synchronized (this) {
+                        readRecords(in);
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (final IOException e) {
+                Log.e(TAG, "Cannot read " + mFile, e);
+                mFile.delete();
+            }
+        }
+        mIsLoaded = true;
+    }
+
+    // Must be called with the lock held.
+    private void readRecords(final DataInputStream in) throws IOException {
+        while (true) {
+            try {
+                final byte op = in.readByte();
+                if (op == OP_ADD) {
+                    final String code = in.readUTF();
+                    final String word = in.readUTF();
+                    addWord(code, word, in.readInt());
+                } else if (op == OP_REMOVE) {
+                    removeWord(in.readUTF());
+                } else {
+                    throw new IOException("Unknown record: " + op);
+                }
+            } catch (final EOFException e) {
+                // Also drops a record cut short by the process being killed.
+                return;
+            }
+            mRecordCountOnDisk++;
+        }
+    }
+
+    private void writePendingRecords() {
+        final byte[] records;
+        final boolean shouldCompact;
+        synchronized (this) {
+            if (mPendingRecordCount == 0) {
+                return;
+            }
+            int wordCount = 0;
+            for (final ArrayList<HistoryWord> words : mWordsByCode.values()) {
+                wordCount += words.size();
+            }
+            final int recordCount = mRecordCountOnDisk + mPendingRecordCount;
+            shouldCompact = recordCount >= MIN_RECORD_COUNT_TO_COMPACT
+                    && recordCount >= wordCount * COMPACTION_RATIO;
+            if (shouldCompact) {
+                // The words in memory already include the pending records.
+                records = getAllWordsAsRecords();
+                mRecordCountOnDisk = wordCount;
+            } else {
+                records = mPendingRecords.toByteArray();
+                mRecordCountOnDisk = recordCount;
+            }
+            mPendingRecords.reset();
+            mPendingRecordCount = 0;
+        }
+        try {
+            if (shouldCompact) {
+                final File tempFile = new File(mFile.getPath() + ".tmp");
+                writeFile(tempFile, records, false /* append */);
+                if (!tempFile.renameTo(mFile)) {
+                    tempFile.delete();
+                    throw new IOException("Cannot rename " + tempFile);
+                }
+            } else {
+                writeFile(mFile, records, true /* append */);
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Cannot write " + mFile, e);
+        }
+    }
+
+    // Must be called with the lock held.
+    private byte[] getAllWordsAsRecords() {
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(records);
+        try {
+            for (final Map.Entry<String, ArrayList<HistoryWord>> entry
+                    : mWordsByCode.entrySet()) {
+                final ArrayList<HistoryWord> words = entry.getValue();
+                // Replaying from the last word gives back the same order.
+                for (int i = words.size() - 1; i >= 0; i--) {
+                    out.writeByte(OP_ADD);
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(words.get(i).mWord);
+                    out.writeInt(words.get(i).mCount);
+                }
+            }
+        } catch (final IOException e) {
+            // Cannot happen with a ByteArrayOutputStream.
+        }
+        return records.toByteArray();
+    }
+
+    private static void writeFile(final File file, final byte[] records, final boolean append)
+            throws IOException {
+        final boolean needsHeader = !append || !file.exists();
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, append)));
+        try {
+            if (needsHeader) {
+                out.writeInt(MAGIC_NUMBER);
+                out.writeInt(VERSION);
+            }
+            out.write(records);
+        } finally {
+            out.close();
+        }
+    }
+}
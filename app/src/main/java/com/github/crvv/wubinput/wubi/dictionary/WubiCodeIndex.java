@@ -0,0 +1,158 @@
+package com.github.crvv.wubinput.wubi.dictionary;
+
+import com.github.crvv.wubinput.wubi.utils.ResizableIntArray;
+
+/**
+ * Resolves typed codes to ranges of the sorted code table of a {@link WubiDictionaryFile}.
+ *
+ * Every code starting with a given prefix sits in one contiguous range [lo, hi) of the code
+ * table, and the words of that range are contiguous in the word table too. A plain prefix is
+ * therefore two binary searches. A wildcard letter 'z' is expanded by walking only the children
+ * that exist under the current range, one binary search per child, so no part of the table
+ * outside the matching branches is ever read.
+ *
+ * While a code is being typed, a {@link Cursor} keeps the range of each prefix, so that the
+ * next letter only has to search the range of the current one.
+ */
+final class WubiCodeIndex {
+    private final WubiDictionaryFile mFile;
+
+    public WubiCodeIndex(final WubiDictionaryFile file) {
+        mFile = file;
+    }
+
+    /**
+     * The ranges of the successive literal prefixes of the code being composed.
+     *
+     * Typing one more letter narrows the deepest range, and deleting a letter pops it, so a
+     * keystroke costs one binary search over the codes of the previous prefix instead of one
+     * over the whole table. A cursor is only a cache: it may be used with any code, it keeps
+     * whatever part of its stack is a prefix of the new code and recomputes the rest.
+     * It is not thread-safe.
+     */
+    public static final class Cursor {
+        private final int[] mLetters = new int[FormatSpec.MAX_CODE_LENGTH];
+        // mPackedPrefixes[d], mLo[d] and mHi[d] describe the prefix of the first d letters.
+        private final int[] mPackedPrefixes = new int[FormatSpec.MAX_CODE_LENGTH + 1];
+        private final int[] mLo = new int[FormatSpec.MAX_CODE_LENGTH + 1];
+        private final int[] mHi = new int[FormatSpec.MAX_CODE_LENGTH + 1];
+        private int mDepth;
+
+        private Cursor(final int codeCount) {
+            mHi[0] = codeCount;
+        }
+    }
+
+    public Cursor newCursor() {
+        return new Cursor(mFile.getCodeCount());
+    }
+
+    /**
+     * Appends to outWordIndices the words of all codes that start with the given code, in code
+     * order and by decreasing frequency within a code, until outWordIndices holds maxCount words.
+     * 'z' matches any letter.
+     *
+     * @return false if the code can not be a Wubi code, true otherwise.
+     */
+    public boolean getWords(final String code, final int maxCount,
+            final ResizableIntArray outWordIndices) {
+        return getWords(newCursor(), code, maxCount, outWordIndices);
+    }
+
+    /**
+     * Same as {@link #getWords(String, int, ResizableIntArray)}, narrowing from the ranges already held by
+     * the cursor and leaving it positioned on the literal prefix of the code.
+     */
+    public boolean getWords(final Cursor cursor, final String code, final int maxCount,
+            final ResizableIntArray outWordIndices) {
+        final int length = code.length();
+        if (length == 0 || length > FormatSpec.MAX_CODE_LENGTH) {
+            return false;
+        }
+        final int[] letters = new int[length];
+        for (int i = 0; i < length; i++) {
+            final char c = code.charAt(i);
+            if (c == FormatSpec.WILDCARD_LETTER) {
+                letters[i] = 0;
+            } else {
+                letters[i] = FormatSpec.getLetterValue(c);
+                if (letters[i] == 0) {
+                    return false;
+                }
+            }
+        }
+        // Pop the ranges that are not for a prefix of this code, then push the missing ones up
+        // to the first wildcard.
+        int depth = 0;
+        while (depth < cursor.mDepth && depth < length
+                && cursor.mLetters[depth] == letters[depth]) {
+            depth++;
+        }
+        while (depth < length && letters[depth] != 0) {
+            final int lo = cursor.mLo[depth];
+            final int hi = cursor.mHi[depth];
+            final int childPrefix = cursor.mPackedPrefixes[depth]
+                    | (letters[depth] << FormatSpec.getLetterShift(depth));
+            final int childLo = mFile.lowerBound(childPrefix, lo, hi);
+            cursor.mLetters[depth] = letters[depth];
+            cursor.mPackedPrefixes[depth + 1] = childPrefix;
+            cursor.mLo[depth + 1] = childLo;
+            cursor.mHi[depth + 1] = getRangeEnd(childPrefix, depth + 1, childLo, hi);
+            depth++;
+        }
+        cursor.mDepth = depth;
+        if (cursor.mLo[depth] < cursor.mHi[depth]) {
+            collectWords(letters, depth, cursor.mPackedPrefixes[depth], cursor.mLo[depth],
+                    cursor.mHi[depth], maxCount, outWordIndices);
+        }
+        return true;
+    }
+
+    /**
+     * @param letters the letters to match, 0 being the wildcard.
+     * @param position the number of letters already matched.
+     * @param packedPrefix the concrete prefix all codes in [lo, hi) start with.
+     */
+    private void collectWords(final int[] letters, final int position, final int packedPrefix,
+            final int lo, final int hi, final int maxCount,
+            final ResizableIntArray outWordIndices) {
+        if (position == letters.length) {
+            final int end = mFile.getFirstWordIndex(hi);
+            for (int i = mFile.getFirstWordIndex(lo);
+                    i < end && outWordIndices.getLength() < maxCount; i++) {
+                outWordIndices.add(i);
+            }
+            return;
+        }
+        final int shift = FormatSpec.getLetterShift(position);
+        if (letters[position] != 0) {
+            final int childPrefix = packedPrefix | (letters[position] << shift);
+            final int childLo = mFile.lowerBound(childPrefix, lo, hi);
+            final int childHi = getRangeEnd(childPrefix, position + 1, childLo, hi);
+            if (childLo < childHi) {
+                collectWords(letters, position + 1, childPrefix, childLo, childHi, maxCount,
+                        outWordIndices);
+            }
+            return;
+        }
+        // The code equal to the prefix itself, if any, is first in the range and is skipped.
+        int childLo = mFile.lowerBound(packedPrefix | (1 << shift), lo, hi);
+        while (childLo < hi && outWordIndices.getLength() < maxCount) {
+            final int letter = (mFile.getCode(childLo) >> shift) & FormatSpec.LETTER_MASK;
+            final int childPrefix = packedPrefix | (letter << shift);
+            final int childHi = getRangeEnd(childPrefix, position + 1, childLo, hi);
+            collectWords(letters, position + 1, childPrefix, childLo, childHi, maxCount,
+                    outWordIndices);
+            childLo = childHi;
+        }
+    }
+
+    /**
+     * @return the end of the range of codes starting with packedPrefix, searching in [from, to).
+     */
+    private int getRangeEnd(final int packedPrefix, final int prefixLength, final int from,
+            final int to) {
+        return mFile.lowerBound(FormatSpec.getLastCodeWithPrefix(packedPrefix, prefixLength) + 1,
+                from, to);
+    }
+}
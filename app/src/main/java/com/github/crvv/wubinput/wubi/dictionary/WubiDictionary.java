@@ -1,26 +1,28 @@
 package com.github.crvv.wubinput.wubi.dictionary;
 
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
-import android.provider.BaseColumns;
 import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseArray;
 
 import com.github.crvv.wubinput.keyboard.ProximityInfo;
 import com.github.crvv.wubinput.wubi.PrevWordsInfo;
 import com.github.crvv.wubinput.wubi.R;
 import com.github.crvv.wubinput.wubi.WordComposer;
+import com.github.crvv.wubinput.wubi.dictionary.SuggestedWords.SuggestedWordInfo;
 import com.github.crvv.wubinput.wubi.settings.SettingsValuesForSuggestion;
-import org.apache.commons.io.IOUtils;
+import com.github.crvv.wubinput.wubi.utils.ResizableIntArray;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
-import java.text.MessageFormat;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.github.crvv.wubinput.wubi.dictionary.SuggestedWords.MAX_SUGGESTIONS;
 
@@ -28,13 +30,61 @@ public class WubiDictionary extends Dictionary {
 
     private boolean mIsInitialized = false;
     private static final String TAG = "Dictionary";
-    private WubiWordsDbHelper dbHelper;
+    // The SQLite database that older versions imported wubi.sql into on first run.
+    private static final String LEGACY_DATABASE_NAME = "FeedReader.db";
+    private WubiDictionaryFile mDictionaryFile;
+    private WubiCodeIndex mCodeIndex;
+    // Follows the composing word: each letter typed narrows it and each backspace pops it.
+    private WubiCodeIndex.Cursor mComposingCursor;
+
+    // Most typing reuses a few thousand codes, so their candidates are kept once built.
+    private static final int MAX_CACHED_CODES = 4096;
+    // What is left of the cache while the system is running low on memory.
+    private static final int MAX_CACHED_CODES_WHEN_LOW_ON_MEMORY = 256;
+    private static final SuggestedWordInfo[] EMPTY_CANDIDATES = new SuggestedWordInfo[0];
+    private final CandidateCache mCandidateCache = new CandidateCache(MAX_CACHED_CODES);
+    // Candidates built ahead of time for the codes the next letter may make. They are kept
+    // apart so that guesses never evict codes that were typed, and move to mCandidateCache
+    // once typed. A code has at most 26 children, the wildcard included.
+    private static final int MAX_PREFETCHED_CODES = 32;
+    private final CandidateCache mPrefetchedCandidates =
+            new CandidateCache(MAX_PREFETCHED_CODES);
+
+    // The score of a word is MAX_WORD_SCORE minus its rank. A word ranks by its index in the
+    // word table, which is the order candidates are listed in, unless the user counts moved it
+    // within its code. A word at its own rank always gets the same SuggestedWordInfo, built once
+    // and shared by every code that lists it; so does each association.
+    private static final int MAX_WORD_SCORE = 1000;
+    // Guarded by themselves.
+    private final SparseArray<SuggestedWordInfo> mWordInfos = new SparseArray<>();
+    private final SparseArray<SuggestedWordInfo> mPredictionInfos = new SparseArray<>();
+    // The list getSuggestions returns, reused by the next call on the same thread.
+    private final ThreadLocal<ArrayList<SuggestedWordInfo>> mSuggestionList =
+            new ThreadLocal<ArrayList<SuggestedWordInfo>>() {
+                @Override
+                protected ArrayList<SuggestedWordInfo> initialValue() {
+                    return new ArrayList<>(MAX_SUGGESTIONS);
+                }
+            };
+
+    private static final String USER_FREQUENCY_FILE_NAME = "user_frequency";
+    private UserFrequencyStore mUserFrequencyStore;
+    // Changed whenever the user counts change, so that candidates built from older counts are
+    // not put in the cache.
+    private final AtomicInteger mUserCountsVersion = new AtomicInteger();
 
     public WubiDictionary(final String type, Context context) {
         super(type);
         initDictionary(context);
     }
 
+    /**
+     * For dictionaries that keep their own words instead of reading the main dictionary file.
+     */
+    protected WubiDictionary(final String type) {
+        super(type);
+    }
+
     @Override
     public ArrayList<SuggestedWords.SuggestedWordInfo>
     getSuggestions(final WordComposer composer,
@@ -42,17 +92,378 @@ public class WubiDictionary extends Dictionary {
                    final SettingsValuesForSuggestion settingsValuesForSuggestion,
                    final int sessionId, final float[] inOutLanguageWeight) {
 
-        String code = composer.getTypedWord();
-        List<String> words = dbHelper.getWords(code);
-        if (words == null) words = new ArrayList<>();
-        ArrayList<SuggestedWords.SuggestedWordInfo> suggestedWords = new ArrayList<>();
-        int index = 0;
-        for (String word : words) {
-            suggestedWords.add(new SuggestedWords.SuggestedWordInfo(word, 1000 - index, SuggestedWords.SuggestedWordInfo.KIND_CORRECTION, this, index, 1));
-            index++;
+        final ArrayList<SuggestedWordInfo> suggestedWords = mSuggestionList.get();
+        suggestedWords.clear();
+        if (!composer.isComposingWord()) {
+            addPredictions(prevWordsInfo, suggestedWords);
+            return suggestedWords;
         }
+        Collections.addAll(suggestedWords, getCandidates(composer.getTypedWord()));
         return suggestedWords;
+    }
+
+    /**
+     * Adds the words that may follow the last committed word: the rest of each phrase of the
+     * dictionary that starts with it, most frequent first. If no phrase starts with the whole
+     * word, its shorter endings are tried, longest first.
+     *
+     * This is a few binary searches over the mapped association table and at most
+     * MAX_SUGGESTIONS words read from the pool, so it needs no cache.
+     */
+    private void addPredictions(final PrevWordsInfo prevWordsInfo,
+            final ArrayList<SuggestedWordInfo> outPredictions) {
+        if (!mIsInitialized || prevWordsInfo == null) {
+            return;
+        }
+        final PrevWordsInfo.WordInfo prevWordInfo = prevWordsInfo.mPrevWordsInfo[0];
+        if (prevWordInfo == null || !prevWordInfo.isValid()
+                || prevWordInfo.mIsBeginningOfSentence || prevWordInfo.mWord.length() == 0) {
+            return;
+        }
+        final String prevWord = prevWordInfo.mWord.toString();
+        final byte[] prevWordBytes = prevWord.getBytes(StandardCharsets.UTF_8);
+        int charStart = 0;
+        int byteStart = 0;
+        while (charStart < prevWord.length()) {
+            final int keyIndex = mDictionaryFile.findAssociationKey(prevWordBytes, byteStart,
+                    prevWordBytes.length);
+            if (keyIndex >= 0) {
+                final int keyLength = prevWord.length() - charStart;
+                final int start = mDictionaryFile.getFirstAssociation(keyIndex);
+                final int end = Math.min(mDictionaryFile.getFirstAssociation(keyIndex + 1),
+                        start + MAX_SUGGESTIONS);
+                for (int i = start; i < end; i++) {
+                    outPredictions.add(getPredictionInfo(i, i - start, keyLength));
+                }
+                return;
+            }
+            final int codePoint = prevWord.codePointAt(charStart);
+            charStart += Character.charCount(codePoint);
+            byteStart += getUtf8Length(codePoint);
+        }
+    }
+
+    // The successors of a key and their order never change, so the same key length and rank
+    // always come with the association.
+    private SuggestedWordInfo getPredictionInfo(final int associationIndex, final int rank,
+            final int keyLength) {
+        synchronized (mPredictionInfos) {
+            final SuggestedWordInfo cachedInfo = mPredictionInfos.get(associationIndex);
+            if (cachedInfo != null) {
+                return cachedInfo;
+            }
+        }
+        final String phrase =
+                mDictionaryFile.getWord(mDictionaryFile.getAssociatedWordIndex(associationIndex));
+        final SuggestedWordInfo info = new SuggestedWordInfo(phrase.substring(keyLength),
+                MAX_WORD_SCORE - rank, SuggestedWordInfo.KIND_PREDICTION, this, rank, 1);
+        synchronized (mPredictionInfos) {
+            mPredictionInfos.put(associationIndex, info);
+        }
+        return info;
+    }
+
+    private static int getUtf8Length(final int codePoint) {
+        if (codePoint < 0x80) return 1;
+        if (codePoint < 0x800) return 2;
+        if (codePoint < 0x10000) return 3;
+        return 4;
+    }
+
+    /**
+     * Returns the candidates of the code from the cache, building them on a miss. The returned
+     * array is shared and must not be modified.
+     */
+    private SuggestedWordInfo[] getCandidates(final String code) {
+        if (code == null) {
+            return EMPTY_CANDIDATES;
+        }
+        final SuggestedWordInfo[] cachedCandidates = getCachedCandidates(code);
+        if (cachedCandidates != null) {
+            return cachedCandidates;
+        }
+        if (!mayHaveSuggestionsFor(code)) {
+            return EMPTY_CANDIDATES;
+        }
+        final int userCountsVersion = mUserCountsVersion.get();
+        final SuggestedWordInfo[] candidates = buildCandidates(code);
+        if (candidates == null) {
+            return EMPTY_CANDIDATES;
+        }
+        if (userCountsVersion == mUserCountsVersion.get()) {
+            mCandidateCache.putCandidates(code, candidates);
+        }
+        return candidates;
+    }
+
+    private SuggestedWordInfo[] getCachedCandidates(final String code) {
+        final SuggestedWordInfo[] cachedCandidates = mCandidateCache.get(code);
+        if (cachedCandidates != null) {
+            return cachedCandidates;
+        }
+        final SuggestedWordInfo[] prefetchedCandidates = mPrefetchedCandidates.remove(code);
+        if (prefetchedCandidates != null) {
+            mCandidateCache.putCandidates(code, prefetchedCandidates);
+        }
+        return prefetchedCandidates;
+    }
+
+    /**
+     * Builds the candidates of the code ahead of time, so that typing it next finds them in
+     * memory. Does nothing if they are already cached or the code has no word.
+     */
+    public void prefetchCandidates(final String code) {
+        if (mCandidateCache.contains(code) || mPrefetchedCandidates.contains(code)
+                || !mayHaveSuggestionsFor(code)) {
+            return;
+        }
+        final int userCountsVersion = mUserCountsVersion.get();
+        final SuggestedWordInfo[] candidates = buildCandidates(code);
+        if (candidates != null && userCountsVersion == mUserCountsVersion.get()) {
+            mPrefetchedCandidates.putCandidates(code, candidates);
+        }
+    }
+
+    /**
+     * @return the candidates of the code, or null if the code can not be looked up.
+     */
+    private SuggestedWordInfo[] buildCandidates(final String code) {
+        final int[] wordIndices = getWordIndices(code);
+        if (wordIndices == null) {
+            return null;
+        }
+        // The words come out of the index already ranked, in increasing word index, so the
+        // position of a word in the list is given its word index as rank, even when the user
+        // counts put another word there.
+        final int[] ranks = wordIndices.clone();
+        applyUserCounts(wordIndices);
+        final SuggestedWordInfo[] candidates = new SuggestedWordInfo[wordIndices.length];
+        for (int index = 0; index < candidates.length; index++) {
+            candidates[index] = getWordInfo(wordIndices[index], ranks[index]);
+        }
+        return candidates;
+    }
+
+    // The touch point index only matters for gesture input, which Wubi codes never come from.
+    private SuggestedWordInfo getWordInfo(final int wordIndex, final int rank) {
+        if (wordIndex != rank) {
+            // Moved by the user counts; such words are few.
+            return new SuggestedWordInfo(mDictionaryFile.getWord(wordIndex),
+                    MAX_WORD_SCORE - rank, SuggestedWordInfo.KIND_CORRECTION, this, 0, 1);
+        }
+        synchronized (mWordInfos) {
+            final SuggestedWordInfo cachedInfo = mWordInfos.get(wordIndex);
+            if (cachedInfo != null) {
+                return cachedInfo;
+            }
+        }
+        final SuggestedWordInfo info = new SuggestedWordInfo(mDictionaryFile.getWord(wordIndex),
+                MAX_WORD_SCORE - rank, SuggestedWordInfo.KIND_CORRECTION, this, 0, 1);
+        synchronized (mWordInfos) {
+            mWordInfos.put(wordIndex, info);
+        }
+        return info;
+    }
+
+    /**
+     * Moves the words the user commits more often first among the words of the same code. The
+     * order of the codes is kept, so a word never moves in front of the words of a shorter code.
+     */
+    private void applyUserCounts(final int[] wordIndices) {
+        final UserFrequencyStore userFrequencyStore = mUserFrequencyStore;
+        if (userFrequencyStore == null) {
+            return;
+        }
+        final int[] counts = new int[wordIndices.length];
+        boolean hasCounts = false;
+        for (int i = 0; i < wordIndices.length; i++) {
+            counts[i] = userFrequencyStore.getCount(wordIndices[i]);
+            hasCounts |= counts[i] > 0;
+        }
+        if (!hasCounts) {
+            return;
+        }
+        final int[] codeIndices = new int[wordIndices.length];
+        for (int i = 0; i < wordIndices.length; i++) {
+            codeIndices[i] = mDictionaryFile.getCodeIndexOfWord(wordIndices[i]);
+        }
+        // Stable insertion sort; at most MAX_SUGGESTIONS words.
+        for (int i = 1; i < wordIndices.length; i++) {
+            for (int j = i; j > 0 && codeIndices[j - 1] == codeIndices[j]
+                    && counts[j - 1] < counts[j]; j--) {
+                swap(wordIndices, j - 1, j);
+                swap(counts, j - 1, j);
+            }
+        }
+    }
+
+    private void clearWordInfos() {
+        synchronized (mWordInfos) {
+            mWordInfos.clear();
+        }
+        synchronized (mPredictionInfos) {
+            mPredictionInfos.clear();
+        }
+    }
+
+    private static void swap(final int[] array, final int i, final int j) {
+        final int tmp = array[i];
+        array[i] = array[j];
+        array[j] = tmp;
+    }
 
+    /**
+     * Learns that the word was committed for the typed code, so that it is ranked higher among
+     * the words of its code. The commit is written to disk in the background.
+     */
+    public void addToUserHistory(final String typedWord, final String word) {
+        final UserFrequencyStore userFrequencyStore = mUserFrequencyStore;
+        if (!mIsInitialized || userFrequencyStore == null) {
+            return;
+        }
+        final int[] wordIndices = getWordIndices(typedWord);
+        if (wordIndices == null) {
+            return;
+        }
+        for (final int wordIndex : wordIndices) {
+            if (word.equals(mDictionaryFile.getWord(wordIndex))) {
+                userFrequencyStore.addCommit(wordIndex);
+                mUserCountsVersion.incrementAndGet();
+                invalidateCodesOfWord(wordIndex);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return whether the word is one of the words of the code itself, rather than of a longer
+     * code starting with it. A code with the wildcard has no word of its own.
+     */
+    public boolean isWordOfCode(final String code, final String word) {
+        if (!mIsInitialized || code == null) {
+            return false;
+        }
+        final int packedCode = FormatSpec.packCode(code);
+        if (packedCode == FormatSpec.NOT_A_CODE) {
+            return false;
+        }
+        final int codeIndex = mDictionaryFile.lowerBound(packedCode);
+        if (codeIndex == mDictionaryFile.getCodeCount()
+                || mDictionaryFile.getCode(codeIndex) != packedCode) {
+            return false;
+        }
+        final int end = mDictionaryFile.getFirstWordIndex(codeIndex + 1);
+        for (int wordIndex = mDictionaryFile.getFirstWordIndex(codeIndex); wordIndex < end;
+                wordIndex++) {
+            if (word.equals(mDictionaryFile.getWord(wordIndex))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the commits of a word the user did not want, so that it goes back to its own rank
+     * among the words of its code.
+     */
+    public void removeUnigramEntryDynamically(final String word) {
+        final UserFrequencyStore userFrequencyStore = mUserFrequencyStore;
+        if (!mIsInitialized || userFrequencyStore == null) {
+            return;
+        }
+        // The same word may be listed under several codes.
+        for (final int wordIndex : userFrequencyStore.getCountedWordIndices()) {
+            if (word.equals(mDictionaryFile.getWord(wordIndex))
+                    && userFrequencyStore.forget(wordIndex)) {
+                mUserCountsVersion.incrementAndGet();
+                invalidateCodesOfWord(wordIndex);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached candidates of every typed code that can show the word: the prefixes of
+     * its code, with any of their letters replaced by the wildcard.
+     */
+    private void invalidateCodesOfWord(final int wordIndex) {
+        final int packedCode = mDictionaryFile.getCode(
+                mDictionaryFile.getCodeIndexOfWord(wordIndex));
+        final char[] letters = new char[FormatSpec.MAX_CODE_LENGTH];
+        int length = 0;
+        while (length < FormatSpec.MAX_CODE_LENGTH) {
+            final int letter = (packedCode >> FormatSpec.getLetterShift(length))
+                    & FormatSpec.LETTER_MASK;
+            if (letter == 0) break;
+            letters[length++] = (char) ('a' + letter - 1);
+        }
+        final char[] typedCode = new char[FormatSpec.MAX_CODE_LENGTH];
+        for (int prefixLength = 1; prefixLength <= length; prefixLength++) {
+            for (int wildcards = 0; wildcards < 1 << prefixLength; wildcards++) {
+                for (int i = 0; i < prefixLength; i++) {
+                    typedCode[i] = (wildcards & (1 << i)) != 0
+                            ? FormatSpec.WILDCARD_LETTER : letters[i];
+                }
+                final String code = new String(typedCode, 0, prefixLength);
+                mCandidateCache.remove(code);
+                mPrefetchedCandidates.remove(code);
+            }
+        }
+    }
+
+    /**
+     * Drops every cached candidate. Must be called whenever the words of the dictionary change.
+     */
+    public void invalidateCache() {
+        mCandidateCache.evictAll();
+        mPrefetchedCandidates.evictAll();
+    }
+
+    @Override
+    public void onTrimMemory(final int level) {
+        if (mUserFrequencyStore != null) {
+            // The process may be killed next.
+            mUserFrequencyStore.flush();
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            // The process is in the LRU list; the cache is cheap to rebuild once it comes back.
+            invalidateCache();
+            clearWordInfos();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mCandidateCache.trimToSize(MAX_CACHED_CODES_WHEN_LOW_ON_MEMORY);
+        }
+    }
+
+    @Override
+    public boolean mayHaveSuggestionsFor(final String typedWord) {
+        return mIsInitialized && mDictionaryFile.hasCodeWithPrefix(typedWord);
+    }
+
+    @Override
+    public String getUniqueSuggestion(final String typedWord) {
+        if (!mIsInitialized || !mDictionaryFile.hasUniqueWord(typedWord)) {
+            return null;
+        }
+        final SuggestedWordInfo[] candidates = getCandidates(typedWord);
+        return candidates.length == 1 ? candidates[0].mWord : null;
+    }
+
+    @Override
+    public ArrayList<SuggestedWordInfo> getCachedSuggestions(final String typedWord) {
+        if (typedWord == null || typedWord.length() == 0) {
+            // Predictions are not cached.
+            return null;
+        }
+        final ArrayList<SuggestedWordInfo> suggestedWords = mSuggestionList.get();
+        suggestedWords.clear();
+        if (!mayHaveSuggestionsFor(typedWord)) {
+            return suggestedWords;
+        }
+        final SuggestedWordInfo[] cachedCandidates = getCachedCandidates(typedWord);
+        if (cachedCandidates == null) {
+            return null;
+        }
+        Collections.addAll(suggestedWords, cachedCandidates);
+        return suggestedWords;
     }
 
     @Override
@@ -65,83 +476,108 @@ public class WubiDictionary extends Dictionary {
         return mIsInitialized;
     }
 
+    /**
+     * Reads the index from storage and builds the candidates of the one-letter codes, which
+     * every code starts with.
+     */
+    @Override
+    public void warmUp() {
+        if (!mIsInitialized) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        mDictionaryFile.touchIndexPages();
+        for (char letter = 'a'; letter < FormatSpec.WILDCARD_LETTER; letter++) {
+            getCandidates(String.valueOf(letter));
+        }
+        Log.i(TAG, "warming up dictionary use "
+                + String.valueOf(System.currentTimeMillis() - start) + " ms");
+    }
+
     @Override
     public void close() {
-        dbHelper.close();
+        // The mapping is released when the buffer is garbage collected.
+        mIsInitialized = false;
+        invalidateCache();
+        clearWordInfos();
+        if (mUserFrequencyStore != null) {
+            mUserFrequencyStore.flush();
+        }
     }
 
     private void initDictionary(Context context) {
-        dbHelper = new WubiWordsDbHelper(context);
-        mIsInitialized = true;
-    }
-
-    private static class WubiWordsDbHelper extends SQLiteOpenHelper implements BaseColumns {
-        private static final String TABLE_NAME = "wubi_words";
-        private static final String COLUMN_NAME_CODE = "code";
-        private static final String COLUMN_NAME_WORD = "word";
-        private static final String SQL_CREATE_ENTRIES =
-                "CREATE TABLE " + WubiWordsDbHelper.TABLE_NAME + " (" +
-                        WubiWordsDbHelper._ID + " INTEGER PRIMARY KEY," +
-                        WubiWordsDbHelper.COLUMN_NAME_CODE + " TEXT," +
-                        WubiWordsDbHelper.COLUMN_NAME_WORD + " TEXT)";
-        private static final String SQL_DELETE_ENTRIES = "DROP TABLE IF EXISTS " + WubiWordsDbHelper.TABLE_NAME;
-        private static final String SQL_CREATE_INDEX = "CREATE INDEX wubi_words_code ON wubi_words(code)";
-        private static final int DATABASE_VERSION = 1;
-        private static final String DATABASE_NAME = "FeedReader.db";
-        private SQLiteDatabase db;
-        private Context context;
-
-        private WubiWordsDbHelper(Context c) {
-            super(c, DATABASE_NAME, null, DATABASE_VERSION);
-            context = c;
-            db = this.getReadableDatabase();
-            db.execSQL("PRAGMA case_sensitive_like = true");
-        }
-
-        public void onCreate(SQLiteDatabase db) {
-            db.execSQL(SQL_CREATE_ENTRIES);
-            long start = System.currentTimeMillis();
-
-            InputStream is = context.getResources().openRawResource(R.raw.wubi);
-            try {
-                String insertDataSql = IOUtils.toString(is, StandardCharsets.UTF_8);
-                db.execSQL(insertDataSql);
-                db.execSQL(SQL_CREATE_INDEX);
-                Log.i(TAG, "reading resource file use " + String.valueOf(System.currentTimeMillis() - start) + " ms");
-            } catch (IOException e) {
-                Log.e(TAG, "read from resource file failed");
-            } finally {
-                IOUtils.closeQuietly(is);
+        long start = System.currentTimeMillis();
+        try {
+            mDictionaryFile = WubiDictionaryFile.openRawResource(context, R.raw.wubi);
+            mCodeIndex = new WubiCodeIndex(mDictionaryFile);
+            mComposingCursor = mCodeIndex.newCursor();
+            mUserFrequencyStore = UserFrequencyStore.getInstance(
+                    new File(context.getFilesDir(), USER_FREQUENCY_FILE_NAME), mDictionaryFile,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            mUserCountsVersion.incrementAndGet();
+                            invalidateCache();
+                        }
+                    });
+            mIsInitialized = true;
+            Log.i(TAG, "mapping dictionary file use "
+                    + String.valueOf(System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            Log.e(TAG, "map dictionary file failed", e);
+        }
+        context.deleteDatabase(LEGACY_DATABASE_NAME);
+    }
+
+    /**
+     * Returns the indices of the words of all codes starting with the given code, in code order
+     * and by decreasing frequency within a code. 'z' matches any letter.
+     */
+    private int[] getWordIndices(String code) {
+        if (!mIsInitialized || code == null || code.length() == 0) {
+            return null;
+        }
+        final ResizableIntArray result = new ResizableIntArray(MAX_SUGGESTIONS);
+        synchronized (mComposingCursor) {
+            if (!mCodeIndex.getWords(mComposingCursor, code, MAX_SUGGESTIONS, result)) {
+                return null;
             }
         }
+        final int[] wordIndices = new int[result.getLength()];
+        System.arraycopy(result.getPrimitiveArray(), 0, wordIndices, 0, wordIndices.length);
+        return wordIndices;
+    }
 
-        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            // This database is only a cache for online data, so its upgrade policy is
-            // to simply to discard the data and start over
-            db.execSQL(SQL_DELETE_ENTRIES);
-            onCreate(db);
+    /**
+     * An LruCache of the candidates of each code that tells whether it holds a code without
+     * making it the most recently used or counting a hit or a miss. Candidates must be put with
+     * {@link #putCandidates}.
+     */
+    private static final class CandidateCache extends LruCache<String, SuggestedWordInfo[]> {
+        // A code put while another thread removes it may be left out, which only costs
+        // prefetching it again.
+        private final Set<String> mCodes =
+                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        public CandidateCache(final int maxSize) {
+            super(maxSize);
         }
 
-        public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            onUpgrade(db, oldVersion, newVersion);
+        public void putCandidates(final String code, final SuggestedWordInfo[] candidates) {
+            mCodes.add(code);
+            put(code, candidates);
         }
 
-        private List<String> getWords(String code) {
-            if (code == null || code.length() == 0) {
-                return null;
-            }
-            String[] selectArgs = {code.replace('z', '_') + "%"};
-            String sql = MessageFormat.format(
-                    "SELECT {2} FROM {0} WHERE {1} LIKE ? ORDER BY {1} ASC LIMIT {3}",
-                    TABLE_NAME, COLUMN_NAME_CODE, COLUMN_NAME_WORD, MAX_SUGGESTIONS);
-            Cursor cursor = db.rawQuery(sql, selectArgs);
-            List<String> result = new ArrayList<>();
-            while (cursor.moveToNext()) {
-                String word = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_NAME_WORD));
-                result.add(word);
+        public boolean contains(final String code) {
+            return mCodes.contains(code);
+        }
+
+        @Override
+        protected void entryRemoved(final boolean evicted, final String code,
+                final SuggestedWordInfo[] oldCandidates, final SuggestedWordInfo[] newCandidates) {
+            if (newCandidates == null) {
+                mCodes.remove(code);
             }
-            cursor.close();
-            return result;
         }
     }
 }
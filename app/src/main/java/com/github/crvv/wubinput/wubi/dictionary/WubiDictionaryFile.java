@@ -0,0 +1,279 @@
+package com.github.crvv.wubinput.wubi.dictionary;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only view of the compiled Wubi dictionary, mapped straight from the APK.
+ *
+ * The resource must be stored uncompressed (see aaptOptions in app/build.gradle) so that it can
+ * be memory-mapped. Only absolute reads are done on the buffer, so a single instance can be used
+ * from any thread.
+ */
+final class WubiDictionaryFile {
+    // The unit the mapping is read from storage in.
+    private static final int PAGE_SIZE = 4096;
+
+    private final ByteBuffer mBuffer;
+    private final int mCodeCount;
+    private final int mWordCount;
+    private final int mCodeTableOffset;
+    private final int mCodeStartTableOffset;
+    private final int mWordTableOffset;
+    private final int mWordPoolOffset;
+    private final int mWordPoolSize;
+    private final int mPrefixBitmapOffset;
+    private final int mUniqueCodeBitmapOffset;
+    private final int mAssociationKeyCount;
+    private final int mAssociationKeyTableOffset;
+    private final int mAssociationStartTableOffset;
+    private final int mAssociationTableOffset;
+
+    private WubiDictionaryFile(final ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < FormatSpec.HEADER_SIZE
+                || buffer.getInt(FormatSpec.HEADER_MAGIC_OFFSET) != FormatSpec.MAGIC_NUMBER) {
+            throw new IOException("Not a Wubi dictionary");
+        }
+        final int version = buffer.getInt(FormatSpec.HEADER_VERSION_OFFSET);
+        if (version != FormatSpec.VERSION) {
+            throw new IOException("Unsupported dictionary version: " + version);
+        }
+        mBuffer = buffer;
+        mCodeCount = buffer.getInt(FormatSpec.HEADER_CODE_COUNT_OFFSET);
+        mWordCount = buffer.getInt(FormatSpec.HEADER_WORD_COUNT_OFFSET);
+        mCodeTableOffset = buffer.getInt(FormatSpec.HEADER_CODE_TABLE_OFFSET);
+        mCodeStartTableOffset = mCodeTableOffset + mCodeCount * FormatSpec.INT_SIZE;
+        mWordTableOffset = buffer.getInt(FormatSpec.HEADER_WORD_TABLE_OFFSET);
+        mWordPoolOffset = buffer.getInt(FormatSpec.HEADER_WORD_POOL_OFFSET);
+        mWordPoolSize = buffer.getInt(FormatSpec.HEADER_WORD_POOL_SIZE_OFFSET);
+        mPrefixBitmapOffset = buffer.getInt(FormatSpec.HEADER_PREFIX_BITMAP_OFFSET);
+        mUniqueCodeBitmapOffset = buffer.getInt(FormatSpec.HEADER_UNIQUE_CODE_BITMAP_OFFSET);
+        mAssociationKeyCount = buffer.getInt(FormatSpec.HEADER_ASSOCIATION_KEY_COUNT_OFFSET);
+        mAssociationKeyTableOffset =
+                buffer.getInt(FormatSpec.HEADER_ASSOCIATION_KEY_TABLE_OFFSET);
+        mAssociationStartTableOffset =
+                buffer.getInt(FormatSpec.HEADER_ASSOCIATION_START_TABLE_OFFSET);
+        mAssociationTableOffset = buffer.getInt(FormatSpec.HEADER_ASSOCIATION_TABLE_OFFSET);
+        if (mWordPoolOffset + mWordPoolSize > buffer.capacity()
+                || mPrefixBitmapOffset + FormatSpec.PREFIX_BITMAP_SIZE > buffer.capacity()
+                || mUniqueCodeBitmapOffset + FormatSpec.PREFIX_BITMAP_SIZE > buffer.capacity()
+                || mAssociationStartTableOffset + (mAssociationKeyCount + 1) * FormatSpec.INT_SIZE
+                        > buffer.capacity()
+                || mAssociationTableOffset + getFirstAssociation(mAssociationKeyCount)
+                        * FormatSpec.INT_SIZE > buffer.capacity()) {
+            throw new IOException("Truncated dictionary");
+        }
+    }
+
+    /**
+     * Maps a dictionary stored as an uncompressed raw resource.
+     */
+    public static WubiDictionaryFile openRawResource(final Context context, final int resId)
+            throws IOException {
+        final AssetFileDescriptor afd;
+        try {
+            afd = context.getResources().openRawResourceFd(resId);
+        } catch (final Resources.NotFoundException e) {
+            throw new IOException("Dictionary resource is compressed or missing", e);
+        }
+        final FileInputStream inputStream = afd.createInputStream();
+        try {
+            final FileChannel channel = inputStream.getChannel();
+            // The mapping stays valid after the channel is closed.
+            return new WubiDictionaryFile(channel.map(FileChannel.MapMode.READ_ONLY,
+                    afd.getStartOffset(), afd.getDeclaredLength()));
+        } finally {
+            inputStream.close();
+            afd.close();
+        }
+    }
+
+    public int getCodeCount() {
+        return mCodeCount;
+    }
+
+    public int getWordCount() {
+        return mWordCount;
+    }
+
+    public int getWordPoolSize() {
+        return mWordPoolSize;
+    }
+
+    public int getCode(final int codeIndex) {
+        return mBuffer.getInt(mCodeTableOffset + codeIndex * FormatSpec.INT_SIZE);
+    }
+
+    /**
+     * @return the index of the first word of the code. Passing getCodeCount() returns
+     * getWordCount(), so the words of code i are [getFirstWordIndex(i), getFirstWordIndex(i + 1)).
+     */
+    public int getFirstWordIndex(final int codeIndex) {
+        return mBuffer.getInt(mCodeStartTableOffset + codeIndex * FormatSpec.INT_SIZE);
+    }
+
+    /**
+     * @return the index of the code the word belongs to.
+     */
+    public int getCodeIndexOfWord(final int wordIndex) {
+        // The last code whose first word is at or before wordIndex.
+        int low = 0;
+        int high = mCodeCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (getFirstWordIndex(mid) <= wordIndex) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+
+    public String getWord(final int wordIndex) {
+        final int tableOffset = mWordTableOffset + wordIndex * FormatSpec.INT_SIZE;
+        final int start = mWordPoolOffset + mBuffer.getInt(tableOffset);
+        final int end = mWordPoolOffset + mBuffer.getInt(tableOffset + FormatSpec.INT_SIZE);
+        final byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = mBuffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the index of the association key whose UTF-8 bytes are word[from, to), or -1 if
+     * no word of the dictionary starts with that word. Nothing is allocated.
+     */
+    public int findAssociationKey(final byte[] word, final int from, final int to) {
+        int low = 0;
+        int high = mAssociationKeyCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final int comparison = compareWord(
+                    mBuffer.getInt(mAssociationKeyTableOffset + mid * FormatSpec.INT_SIZE),
+                    word, from, to);
+            if (comparison < 0) {
+                low = mid + 1;
+            } else if (comparison > 0) {
+                high = mid;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index in the association table of the first successor of the key. Passing
+     * the key count returns the size of the table, so the successors of key i are
+     * [getFirstAssociation(i), getFirstAssociation(i + 1)).
+     */
+    public int getFirstAssociation(final int keyIndex) {
+        return mBuffer.getInt(mAssociationStartTableOffset + keyIndex * FormatSpec.INT_SIZE);
+    }
+
+    /**
+     * @return the index of the word at the given position of the association table. It starts
+     * with its key.
+     */
+    public int getAssociatedWordIndex(final int associationIndex) {
+        return mBuffer.getInt(mAssociationTableOffset + associationIndex * FormatSpec.INT_SIZE);
+    }
+
+    // Compares the UTF-8 bytes of the word at wordIndex to key[from, to), as unsigned bytes.
+    private int compareWord(final int wordIndex, final byte[] key, final int from, final int to) {
+        final int tableOffset = mWordTableOffset + wordIndex * FormatSpec.INT_SIZE;
+        final int start = mWordPoolOffset + mBuffer.getInt(tableOffset);
+        final int end = mWordPoolOffset + mBuffer.getInt(tableOffset + FormatSpec.INT_SIZE);
+        final int length = Math.min(end - start, to - from);
+        for (int i = 0; i < length; i++) {
+            final int difference = (mBuffer.get(start + i) & 0xFF) - (key[from + i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return (end - start) - (to - from);
+    }
+
+    /**
+     * Reads one byte of each page of the tables every lookup goes through: the code tables, the
+     * bitmaps and the association keys. The first lookups then do not wait for these pages to be
+     * read from storage. The words are left to the lookups, as only a few of them are hot.
+     * @return a value that depends on every byte read, so that the reads are kept.
+     */
+    public int touchIndexPages() {
+        // The code start table follows the code table.
+        return touchPages(mCodeTableOffset, (mCodeCount * 2 + 1) * FormatSpec.INT_SIZE)
+                + touchPages(mPrefixBitmapOffset, FormatSpec.PREFIX_BITMAP_SIZE)
+                + touchPages(mUniqueCodeBitmapOffset, FormatSpec.PREFIX_BITMAP_SIZE)
+                + touchPages(mAssociationKeyTableOffset,
+                        mAssociationKeyCount * FormatSpec.INT_SIZE);
+    }
+
+    private int touchPages(final int offset, final int length) {
+        int sum = 0;
+        for (int i = offset; i < offset + length; i += PAGE_SIZE) {
+            sum += mBuffer.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * @return whether some code starts with the given code, 'z' matching any letter. This is
+     * one read from the prefix bitmap, without searching the code table.
+     */
+    public boolean hasCodeWithPrefix(final CharSequence code) {
+        return isBitSet(mPrefixBitmapOffset, code);
+    }
+
+    /**
+     * @return whether the code has all its letters and matches exactly one word, 'z' matching
+     * any letter. This is one read from the unique code bitmap.
+     */
+    public boolean hasUniqueWord(final CharSequence code) {
+        return code.length() == FormatSpec.MAX_CODE_LENGTH
+                && isBitSet(mUniqueCodeBitmapOffset, code);
+    }
+
+    private boolean isBitSet(final int bitmapOffset, final CharSequence code) {
+        final int index = FormatSpec.getPrefixIndex(code);
+        if (index == FormatSpec.NOT_A_CODE) {
+            return false;
+        }
+        return (mBuffer.get(bitmapOffset + (index >> 3)) & (1 << (index & 7))) != 0;
+    }
+
+    /**
+     * @return the index of the first code that is greater than or equal to packedCode, or
+     * getCodeCount() if there is none.
+     */
+    public int lowerBound(final int packedCode) {
+        return lowerBound(packedCode, 0, mCodeCount);
+    }
+
+    /**
+     * @return the index of the first code in [from, to) that is greater than or equal to
+     * packedCode, or to if there is none.
+     */
+    public int lowerBound(final int packedCode, final int from, final int to) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (getCode(mid) < packedCode) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -40,6 +40,7 @@ import com.github.crvv.wubinput.wubi.dictionary.SuggestedWords;
 import com.github.crvv.wubinput.wubi.dictionary.SuggestedWords.SuggestedWordInfo;
 import com.github.crvv.wubinput.wubi.define.DebugFlags;
 import com.github.crvv.wubinput.wubi.utils.ImportantNoticeUtils;
+import com.github.crvv.wubinput.wubi.utils.StatsUtils;
 
 import java.util.ArrayList;
 
@@ -145,6 +146,7 @@ public final class SuggestionStripView extends RelativeLayout implements OnClick
         mSuggestedWords = suggestedWords;
         mLayoutHelper.layoutSuggestions(mSuggestedWords, mSuggestionsStrip, this);
         mStripVisibilityGroup.showSuggestionsStrip();
+        StatsUtils.onSuggestionStripLaidOut();
     }
 
     public void setMoreSuggestionsHeight(final int remainingHeight) {
@@ -53,9 +53,9 @@ import com.github.crvv.wubinput.wubi.settings.SettingsValues;
 import com.github.crvv.wubinput.wubi.settings.SettingsValuesForSuggestion;
 import com.github.crvv.wubinput.wubi.settings.SpacingAndPunctuations;
 import com.github.crvv.wubinput.wubi.dictionary.suggestions.SuggestionStripViewAccessor;
-import com.github.crvv.wubinput.wubi.utils.AsyncResultHolder;
 import com.github.crvv.wubinput.wubi.utils.InputTypeUtils;
 import com.github.crvv.wubinput.wubi.utils.RecapitalizeStatus;
+import com.github.crvv.wubinput.wubi.utils.StatsUtils;
 import com.github.crvv.wubinput.wubi.utils.StringUtils;
 import com.github.crvv.wubinput.wubi.utils.TextRange;
 
@@ -100,6 +100,10 @@ public final class InputLogic {
     // Find a way to remove it for readability.
     private boolean mIsAutoCorrectionIndicatorOn;
 
+    // Whether the code being composed was typed while the main dictionary was loading, and
+    // still has to be looked up. Only used on the UI thread.
+    private boolean mIsInputWaitingForMainDictionary;
+
     /**
      * Create a new instance of the input logic.
      * @param latinIME the instance of the parent LatinIME. We should remove this when we can.
@@ -391,6 +395,11 @@ public final class InputLogic {
             final int keyboardShiftMode,
             // TODO: remove these arguments
             final int currentKeyboardScriptId, final WubiIME.UIHandler handler) {
+        StatsUtils.onCodeInput();
+        // The suggestions still being fetched are for the previous code, and the dictionaries are
+        // needed for real input now.
+        mInputLogicHandler.cancelGetSuggestedWords();
+        handler.cancelShowSuggestionStrip();
         final Event processedEvent = mWordComposer.processEvent(event);
         final InputTransaction inputTransaction = new InputTransaction(settingsValues,
                 processedEvent, SystemClock.uptimeMillis(), mSpaceState,
@@ -532,6 +541,39 @@ public final class InputLogic {
         ++mAutoCommitSequenceNumber;
     }
 
+    private boolean isMainDictionaryLoading() {
+        return !mDictionaryFacilitator.hasInitializedMainDictionary()
+                && !mDictionaryFacilitator.getMainDictionaryReadiness().isDone();
+    }
+
+    /**
+     * Handles the code typed while the main dictionary was loading, now that it can be looked
+     * up: commits its word if it is a complete code with a single word, as it would have been
+     * when typed, and shows its suggestions otherwise.
+     */
+    // Called on the UI thread.
+    public void onMainDictionaryReady(final SettingsValues settingsValues) {
+        if (!mIsInputWaitingForMainDictionary) {
+            return;
+        }
+        mIsInputWaitingForMainDictionary = false;
+        if (!mWordComposer.isComposingWord()) {
+            return;
+        }
+        if (settingsValues.mAutoCommitUniqueCode
+                && mWordComposer.size() >= Constants.DICTIONARY_MAX_WORD_LENGTH) {
+            commitUniqueSuggestion(settingsValues);
+        }
+        performUpdateSuggestionStrip(settingsValues, SuggestedWords.INPUT_STYLE_TYPING);
+    }
+
+    /**
+     * @return the number of requests waiting to be processed off the UI thread.
+     */
+    public int getPendingRequestCount() {
+        return mInputLogicHandler.getPendingMessageCount();
+    }
+
     // TODO: remove this argument
     public void onCancelBatchInput(final WubiIME.UIHandler handler) {
         mInputLogicHandler.onCancelBatchInput();
@@ -759,9 +801,20 @@ public final class InputLogic {
         if (isComposingWord) {
             if (mWordComposer.size() >= Constants.DICTIONARY_MAX_WORD_LENGTH) {
                 commitFirstSuggestedWord(settingsValues, LastComposedWord.NOT_A_SEPARATOR);
+            } else if (settingsValues.mBlockEmptyCode
+                    && mDictionaryFacilitator.hasInitializedMainDictionary()
+                    && !mDictionaryFacilitator.mayHaveSuggestionsFor(mWordComposer.getTypedWord()
+                            + StringUtils.newSingleCodePointString(codePoint))) {
+                // This letter would make a code without any word. Without the main dictionary,
+                // loading or failed to load, no code can be told empty.
+                return;
             }
             mWordComposer.applyProcessedEvent(event);
-            setComposingTextInternal(getTextWithUnderline(mWordComposer.getTypedWord()), 1);
+            if (!(settingsValues.mAutoCommitUniqueCode
+                    && mWordComposer.size() >= Constants.DICTIONARY_MAX_WORD_LENGTH
+                    && commitUniqueSuggestion(settingsValues))) {
+                setComposingTextInternal(getTextWithUnderline(mWordComposer.getTypedWord()), 1);
+            }
         } else {
             sendKeyCodePoint(settingsValues, codePoint);
         }
@@ -1038,8 +1091,18 @@ public final class InputLogic {
                 mRecapitalizeStatus.getNewCursorEnd());
     }
 
-    public void performUpdateSuggestionStripSync(final SettingsValues settingsValues,
+    /**
+     * Updates the suggestion strip for the current input without waiting for the dictionaries.
+     *
+     * The suggestions are shown right away when the dictionaries have them in memory. Otherwise
+     * they are fetched on the Non-UI handler thread and shown when they arrive, through a message
+     * to the UI handler, unless the input has changed by then.
+     */
+    // Called on the UI thread.
+    public void performUpdateSuggestionStrip(final SettingsValues settingsValues,
             final int inputStyle) {
+        // Whatever is still being fetched is for older input.
+        mInputLogicHandler.cancelGetSuggestedWords();
         // Check if we have a suggestion engine attached.
         if (!settingsValues.needsToLookupSuggestions()) {
             if (mWordComposer.isComposingWord()) {
@@ -1056,22 +1119,39 @@ public final class InputLogic {
             return;
         }
 
-        final AsyncResultHolder<SuggestedWords> holder = new AsyncResultHolder<>();
+        final String typedWord = mWordComposer.getTypedWord();
+        mIsInputWaitingForMainDictionary =
+                mWordComposer.isComposingWord() && isMainDictionaryLoading();
+        if (mWordComposer.isComposingWord()
+                && !mDictionaryFacilitator.mayHaveSuggestionsFor(typedWord)) {
+            // An empty code, or the dictionary is still loading: only show the typed code.
+            mSuggestionStripViewAccessor.showSuggestionStrip(new SuggestedWords(
+                    SuggestedWords.getTypedWordAndPreviousSuggestions(typedWord,
+                            SuggestedWords.EMPTY),
+                    null /* rawSuggestions */, false /* typedWordValid */,
+                    false /* willAutoCorrect */, false /* isObsoleteSuggestions */,
+                    inputStyle));
+            return;
+        }
+
+        final SuggestedWords cachedSuggestedWords =
+                mSuggest.getCachedSuggestedWords(mWordComposer, inputStyle);
+        StatsUtils.onSuggestionCacheLookup(cachedSuggestedWords != null);
+        if (cachedSuggestedWords != null) {
+            mSuggestionStripViewAccessor.showSuggestionStrip(cachedSuggestedWords);
+            mInputLogicHandler.prefetchNextCodes(typedWord);
+            return;
+        }
+
         mInputLogicHandler.getSuggestedWords(inputStyle, SuggestedWords.NOT_A_SEQUENCE_NUMBER,
                 new OnGetSuggestedWordsCallback() {
                     @Override
                     public void onGetSuggestedWords(final SuggestedWords suggestedWords) {
-                        holder.set(suggestedWords);
+                        // Called on the Non-UI handler thread.
+                        mLatinIME.mHandler.showSuggestionStrip(suggestedWords);
                     }
                 }
         );
-
-        // This line may cause the current thread to wait.
-        final SuggestedWords suggestedWords = holder.get(null,
-                Constants.GET_SUGGESTED_WORDS_TIMEOUT);
-        if (suggestedWords != null) {
-            mSuggestionStripViewAccessor.showSuggestionStrip(suggestedWords);
-        }
     }
 
     /**
@@ -1624,6 +1704,37 @@ public final class InputLogic {
         }
     }
 
+    private void performAdditionToUserHistoryDictionary(final SettingsValues settingsValues,
+            final String suggestion, final PrevWordsInfo prevWordsInfo) {
+        // Nothing is learned unless the user turned it on, nor where suggestions are not shown,
+        // like in password fields, nor in editors that ask not to, like incognito tabs.
+        if (!settingsValues.mUsePersonalizedDicts || !settingsValues.needsToLookupSuggestions()
+                || settingsValues.mInputAttributes.mNoPersonalizedLearning
+                || TextUtils.isEmpty(suggestion) || !mWordComposer.isComposingWord()) {
+            return;
+        }
+        mDictionaryFacilitator.addToUserHistory(mWordComposer.getTypedWord(), suggestion,
+                prevWordsInfo);
+    }
+
+    /**
+     * Commits the composing word if the dictionary says it has exactly one suggestion, without
+     * waiting for the suggestions to be computed.
+     * @return whether the word was committed.
+     */
+    private boolean commitUniqueSuggestion(final SettingsValues settingsValues) {
+        final String uniqueSuggestion =
+                mDictionaryFacilitator.getUniqueSuggestion(mWordComposer.getTypedWord());
+        if (uniqueSuggestion == null) {
+            return false;
+        }
+        // The suggestions shown are still those of the previous letters.
+        mSuggestedWords = SuggestedWords.EMPTY;
+        commitChosenWord(settingsValues, uniqueSuggestion,
+                LastComposedWord.COMMIT_TYPE_DECIDED_WORD, LastComposedWord.NOT_A_SEPARATOR);
+        return true;
+    }
+
     /**
      * Commit the current auto-correction.
      *
@@ -1633,15 +1744,19 @@ public final class InputLogic {
      * by this suggestion at commit time. When it's not confident enough, or when it has no
      * suggestions, or when the settings or environment does not allow for auto-correction, then
      * this method just commits the typed string.
-     * Note that if suggestions are currently being computed in the background, this method will
-     * block until the computation returns. This is necessary for consistency (it would be very
-     * strange if pressing space would commit a different word depending on how fast you press).
+     * Note that if the suggestions shown are not those of the composing word yet, because they
+     * are still being computed in the background, the suggestions of the composing word are looked
+     * up again on this thread. This is necessary for consistency (it would be very strange if
+     * pressing space would commit a different word depending on how fast you press).
      *
      * @param settingsValues the current value of the settings.
      * @param separator the separator that's causing the commit to happen.
      */
     private void commitFirstSuggestedWord(final SettingsValues settingsValues, final String separator) {
         if (!mWordComposer.isComposingWord()) return;
+        if (!mWordComposer.getTypedWord().equals(mSuggestedWords.mTypedWord)) {
+            mSuggestedWords = getSuggestedWordsForComposingWord();
+        }
         final SuggestedWords suggestedWords = mSuggestedWords;
         String wordToCommit = "";
         if (suggestedWords.size() > 1) {
@@ -1650,6 +1765,27 @@ public final class InputLogic {
         commitChosenWord(settingsValues, wordToCommit, LastComposedWord.COMMIT_TYPE_USER_TYPED_WORD, separator);
     }
 
+    /**
+     * Gets the suggestions of the composing word on this thread, from the cache if they are there.
+     */
+    private SuggestedWords getSuggestedWordsForComposingWord() {
+        final SuggestedWords cachedSuggestedWords = mSuggest.getCachedSuggestedWords(
+                mWordComposer, SuggestedWords.INPUT_STYLE_TYPING);
+        if (null != cachedSuggestedWords) {
+            return cachedSuggestedWords;
+        }
+        final SuggestedWords[] holder = new SuggestedWords[] { SuggestedWords.EMPTY };
+        // Suggestions for non-batch input are computed before the callback returns.
+        mLatinIME.getSuggestedWords(SuggestedWords.INPUT_STYLE_TYPING,
+                SuggestedWords.NOT_A_SEQUENCE_NUMBER, new OnGetSuggestedWordsCallback() {
+                    @Override
+                    public void onGetSuggestedWords(final SuggestedWords suggestedWords) {
+                        holder[0] = suggestedWords;
+                    }
+                });
+        return holder[0];
+    }
+
 
     /**
      * Commits the chosen word to the text field and saves it for later retrieval.
@@ -1672,7 +1808,7 @@ public final class InputLogic {
                 settingsValues.mSpacingAndPunctuations, mWordComposer.isComposingWord() ? 2 : 1);
         mConnection.commitText(chosenWordWithSuggestions, 1);
         // Add the word to the user history dictionary
-//        performAdditionToUserHistoryDictionary(settingsValues, chosenWord, prevWordsInfo);
+        performAdditionToUserHistoryDictionary(settingsValues, chosenWord, prevWordsInfo);
         // TODO: figure out here if this is an auto-correct or if the best word is actually
         // what user typed. Note: currently this is done much later in
         // LastComposedWord#didCommitTypedWord by string equality of the remembered
@@ -1741,6 +1877,14 @@ public final class InputLogic {
                 inputStyle, sequenceNumber, callback);
     }
 
+    /**
+     * Builds ahead of time the suggestions of a code that may be typed next.
+     */
+    // Called on the Non-UI handler thread by InputLogicHandler.
+    void prefetchSuggestions(final String code) {
+        mDictionaryFacilitator.prefetchSuggestions(code);
+    }
+
     /**
      * Used as an injection point for each call of
      * {@link RichInputConnection#setComposingText(CharSequence, int)}.
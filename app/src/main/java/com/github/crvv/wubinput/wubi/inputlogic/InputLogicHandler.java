@@ -21,6 +21,7 @@ import android.os.HandlerThread;
 import android.os.Message;
 
 import com.github.crvv.wubinput.compat.LooperCompatUtils;
+import com.github.crvv.wubinput.wubi.Constants;
 import com.github.crvv.wubinput.wubi.InputPointers;
 import com.github.crvv.wubinput.wubi.WubiIME;
 import com.github.crvv.wubinput.wubi.dictionary.SuggestedWords;
@@ -36,8 +37,25 @@ class InputLogicHandler implements Handler.Callback {
     final InputLogic mInputLogic;
     private final Object mLock = new Object();
     private boolean mInBatchInput; // synchronized using {@link #mLock}.
+    // The id of the last request for suggestions. A request whose id is older has been
+    // superseded: its results are dropped. Synchronized using {@link #mLock}.
+    private int mLatestRequestId;
+    // Incremented to stop the prefetch in progress. Synchronized using {@link #mLock}.
+    private int mPrefetchGeneration;
 
     private static final int MSG_GET_SUGGESTED_WORDS = 1;
+    private static final int MSG_GET_SUGGESTED_WORDS_FOR_TAIL_BATCH = 2;
+    private static final int MSG_PREFETCH_NEXT_CODES = 3;
+
+    private static final class SuggestionRequest {
+        final int mSequenceNumber;
+        final OnGetSuggestedWordsCallback mCallback;
+
+        SuggestionRequest(final int sequenceNumber, final OnGetSuggestedWordsCallback callback) {
+            mSequenceNumber = sequenceNumber;
+            mCallback = callback;
+        }
+    }
 
     // A handler that never does anything. This is used for cases where events come before anything
     // is initialized, though probably only the monkey can actually do this.
@@ -59,6 +77,16 @@ class InputLogicHandler implements Handler.Callback {
         @Override
         public void getSuggestedWords(final int sessionId, final int sequenceNumber,
                 final OnGetSuggestedWordsCallback callback) {}
+        @Override
+        public void cancelGetSuggestedWords() {}
+        @Override
+        public void prefetchNextCodes(final String typedWord) {}
+        @Override
+        public void cancelPrefetch() {}
+        @Override
+        public int getPendingMessageCount() {
+            return 0;
+        }
     };
 
     private InputLogicHandler() {
@@ -77,7 +105,11 @@ class InputLogicHandler implements Handler.Callback {
     }
 
     public void reset() {
-        mNonUIThreadHandler.removeCallbacksAndMessages(null);
+        synchronized (mLock) {
+            // Drops the results of a request that is being processed.
+            mLatestRequestId++;
+            mNonUIThreadHandler.removeCallbacksAndMessages(null);
+        }
     }
 
     // In unit tests, we create several instances of LatinIME, which results in several instances
@@ -95,6 +127,31 @@ class InputLogicHandler implements Handler.Callback {
     public boolean handleMessage(final Message msg) {
         switch (msg.what) {
             case MSG_GET_SUGGESTED_WORDS:
+                final int requestId = msg.arg2;
+                if (isSuperseded(requestId)) {
+                    break;
+                }
+                final SuggestionRequest request = (SuggestionRequest) msg.obj;
+                mLatinIME.getSuggestedWords(msg.arg1 /* inputStyle */, request.mSequenceNumber,
+                        new OnGetSuggestedWordsCallback() {
+                            @Override
+                            public void onGetSuggestedWords(
+                                    final SuggestedWords suggestedWords) {
+                                // The input changed while they were computed.
+                                if (isSuperseded(requestId)) {
+                                    return;
+                                }
+                                request.mCallback.onGetSuggestedWords(suggestedWords);
+                                if (!suggestedWords.isPrediction()) {
+                                    prefetchNextCodes(suggestedWords.mTypedWord);
+                                }
+                            }
+                        });
+                break;
+            case MSG_PREFETCH_NEXT_CODES:
+                prefetch((String) msg.obj, msg.arg1 /* generation */);
+                break;
+            case MSG_GET_SUGGESTED_WORDS_FOR_TAIL_BATCH:
                 mLatinIME.getSuggestedWords(msg.arg1 /* inputStyle */,
                         msg.arg2 /* sequenceNumber */, (OnGetSuggestedWordsCallback) msg.obj);
                 break;
@@ -102,6 +159,25 @@ class InputLogicHandler implements Handler.Callback {
         return true;
     }
 
+    private void prefetch(final String typedWord, final int generation) {
+        // Letters the user is most likely to type would be better first, but the alphabetical
+        // order keeps the code cursor of the dictionary moving forward.
+        for (char letter = 'a'; letter <= 'z'; letter++) {
+            synchronized (mLock) {
+                if (generation != mPrefetchGeneration) {
+                    return;
+                }
+            }
+            mInputLogic.prefetchSuggestions(typedWord + letter);
+        }
+    }
+
+    private boolean isSuperseded(final int requestId) {
+        synchronized (mLock) {
+            return requestId != mLatestRequestId;
+        }
+    }
+
     // Called on the UI thread by InputLogic.
     public void onStartBatchInput() {
         synchronized (mLock) {
@@ -205,9 +281,93 @@ class InputLogicHandler implements Handler.Callback {
         updateBatchInput(batchPointers, sequenceNumber, true /* isTailBatchInput */);
     }
 
+    /**
+     * Cancel the request for suggestions that is pending or being processed, if any. Its
+     * callback is not called.
+     */
+    // This method can be called from any thread.
+    public void cancelGetSuggestedWords() {
+        synchronized (mLock) {
+            mLatestRequestId++;
+            mNonUIThreadHandler.removeMessages(MSG_GET_SUGGESTED_WORDS);
+            cancelPrefetch();
+        }
+    }
+
+    /**
+     * Compute in the background the suggestions of each code the next letter can make from the
+     * typed word, while waiting for the next key. Does nothing if the typed word is complete.
+     * A code has at most 26 children, so this is a bounded amount of work, and it is stopped
+     * by {@link #cancelPrefetch} as soon as real input arrives.
+     * @param typedWord the word being composed.
+     */
+    // This method can be called from any thread.
+    public void prefetchNextCodes(final String typedWord) {
+        if (typedWord == null || typedWord.length() == 0
+                || typedWord.length() >= Constants.DICTIONARY_MAX_WORD_LENGTH) {
+            return;
+        }
+        synchronized (mLock) {
+            mNonUIThreadHandler.removeMessages(MSG_PREFETCH_NEXT_CODES);
+            mNonUIThreadHandler.obtainMessage(MSG_PREFETCH_NEXT_CODES, mPrefetchGeneration,
+                    0 /* unused */, typedWord).sendToTarget();
+        }
+    }
+
+    /**
+     * Stop the prefetch that is pending or in progress, if any.
+     */
+    // This method can be called from any thread.
+    public void cancelPrefetch() {
+        synchronized (mLock) {
+            mPrefetchGeneration++;
+            mNonUIThreadHandler.removeMessages(MSG_PREFETCH_NEXT_CODES);
+        }
+    }
+
+    /**
+     * @return the number of messages waiting on the Non-UI handler thread. At most one request
+     * for suggestions and one prefetch are ever waiting, so this is exact except during a batch
+     * input, whose tails count as one.
+     */
+    // This method can be called from any thread.
+    public int getPendingMessageCount() {
+        int count = 0;
+        if (mNonUIThreadHandler.hasMessages(MSG_GET_SUGGESTED_WORDS)) count++;
+        if (mNonUIThreadHandler.hasMessages(MSG_PREFETCH_NEXT_CODES)) count++;
+        if (mNonUIThreadHandler.hasMessages(MSG_GET_SUGGESTED_WORDS_FOR_TAIL_BATCH)) count++;
+        return count;
+    }
+
+    /**
+     * Fetch suggestions for the current input on the Non-UI handler thread.
+     *
+     * Only the latest request matters: a request that has not started yet is canceled by the
+     * next one, and the callback of a request that was superseded while it was being processed
+     * is never called. The end of a batch input is the exception, as it has to commit its result:
+     * it is never canceled and always calls back.
+     *
+     * @param inputStyle the input style of the suggestions.
+     * @param sequenceNumber the sequence number of a batch input, or
+     * {@link SuggestedWords#NOT_A_SEQUENCE_NUMBER}.
+     * @param callback called on the Non-UI handler thread with the suggestions.
+     */
+    // This method can be called from any thread.
     public void getSuggestedWords(final int inputStyle, final int sequenceNumber,
             final OnGetSuggestedWordsCallback callback) {
-        mNonUIThreadHandler.obtainMessage(
-                MSG_GET_SUGGESTED_WORDS, inputStyle, sequenceNumber, callback).sendToTarget();
+        if (SuggestedWords.INPUT_STYLE_TAIL_BATCH == inputStyle) {
+            mNonUIThreadHandler.obtainMessage(MSG_GET_SUGGESTED_WORDS_FOR_TAIL_BATCH, inputStyle,
+                    sequenceNumber, callback).sendToTarget();
+            return;
+        }
+        synchronized (mLock) {
+            mLatestRequestId++;
+            mNonUIThreadHandler.removeMessages(MSG_GET_SUGGESTED_WORDS);
+            // The handler thread is needed for this request.
+            cancelPrefetch();
+            mNonUIThreadHandler.obtainMessage(MSG_GET_SUGGESTED_WORDS, inputStyle,
+                    mLatestRequestId, new SuggestionRequest(sequenceNumber, callback))
+                    .sendToTarget();
+        }
     }
 }
@@ -39,6 +39,10 @@ public final class Settings implements SharedPreferences.OnSharedPreferenceChang
     // In the same order as xml/prefs.xml
     public static final String PREF_VIBRATE_ON = "vibrate_on";
     public static final String PREF_SOUND_ON = "sound_on";
+    public static final String PREF_BLOCK_EMPTY_CODE = "block_empty_code";
+    public static final String PREF_AUTO_COMMIT_UNIQUE_CODE = "auto_commit_unique_code";
+    public static final String PREF_KEY_USE_PERSONALIZED_DICTS =
+            "pref_key_use_personalized_dicts";
     public static final String PREF_POPUP_ON = "popup_on";
     public static final String PREF_VOICE_INPUT_KEY = "pref_voice_input_key";
     // PREF_SHOW_SUGGESTIONS_SETTING_OBSOLETE is obsolete. Use PREF_SHOW_SUGGESTIONS instead.
@@ -73,6 +77,8 @@ public final class Settings implements SharedPreferences.OnSharedPreferenceChang
 
     public static final String PREF_ENABLE_METRICS_LOGGING = "pref_enable_metrics_logging";
 
+    public static final String PREF_SHOW_PERFORMANCE_HUD = "pref_show_performance_hud";
+
     // This preference key is deprecated. Use {@link #PREF_SHOW_LANGUAGE_SWITCH_KEY} instead.
     // This is being used only for the backward compatibility.
     private static final String PREF_SUPPRESS_LANGUAGE_SWITCH_KEY =
@@ -59,6 +59,9 @@ public final class SettingsValues {
     // From preferences, in the same order as xml/prefs.xml:
     public final boolean mVibrateOn;
     public final boolean mSoundOn;
+    public final boolean mBlockEmptyCode;
+    public final boolean mAutoCommitUniqueCode;
+    public final boolean mUsePersonalizedDicts;
     public final boolean mKeyPreviewPopupOn;
     public final boolean mShowsVoiceInputKey;
     public final boolean mIncludesOtherImesInLanguageSwitchList;
@@ -94,6 +97,7 @@ public final class SettingsValues {
     // Debug settings
     public final boolean mIsInternal;
     public final boolean mHasCustomKeyPreviewAnimationParams;
+    public final boolean mShowPerformanceHud;
     public final int mKeyPreviewShowUpDuration;
     public final int mKeyPreviewDismissDuration;
     public final float mKeyPreviewShowUpStartXScale;
@@ -120,6 +124,9 @@ public final class SettingsValues {
         // Get the settings preferences
         mVibrateOn = Settings.readVibrationEnabled(prefs, res);
         mSoundOn = Settings.readKeypressSoundEnabled(prefs, res);
+        mBlockEmptyCode = prefs.getBoolean(Settings.PREF_BLOCK_EMPTY_CODE, false);
+        mAutoCommitUniqueCode = prefs.getBoolean(Settings.PREF_AUTO_COMMIT_UNIQUE_CODE, true);
+        mUsePersonalizedDicts = prefs.getBoolean(Settings.PREF_KEY_USE_PERSONALIZED_DICTS, false);
         mKeyPreviewPopupOn = Settings.readKeyPreviewPopupEnabled(prefs, res);
         mSlidingKeyInputPreviewEnabled = true;
         mShowsVoiceInputKey = needsToShowVoiceInputKey(prefs, res)
@@ -152,6 +159,7 @@ public final class SettingsValues {
                 R.color.text_decorator_add_to_dictionary_indicator_text_highlight_color);
         mIsInternal = Settings.isInternal(prefs);
         mHasCustomKeyPreviewAnimationParams = false;
+        mShowPerformanceHud = prefs.getBoolean(Settings.PREF_SHOW_PERFORMANCE_HUD, false);
         mKeyPreviewShowUpDuration = res.getInteger(R.integer.config_key_preview_show_up_duration);
         mKeyPreviewDismissDuration = res.getInteger(R.integer.config_key_preview_dismiss_duration);
         final float defaultKeyPreviewShowUpStartScale = ResourceUtils.getFloatFromFraction(
@@ -2,9 +2,13 @@ package com.github.crvv.wubinput.wubi.settings;
 
 import android.app.ActionBar;
 import android.app.Activity;
+import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.view.Menu;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.TextView;
 
 import com.github.crvv.wubinput.wubi.R;
@@ -19,6 +23,19 @@ public class TestActivity extends Activity {
         if(actionBar != null)actionBar.setDisplayHomeAsUpEnabled(true);
         TextView testText = (TextView)findViewById(R.id.test_text1);
         testText.setText(Build.VERSION.CODENAME);
+
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        final CheckBox showPerformanceHud = (CheckBox)findViewById(R.id.show_performance_hud);
+        showPerformanceHud.setChecked(prefs.getBoolean(Settings.PREF_SHOW_PERFORMANCE_HUD, false));
+        showPerformanceHud.setOnCheckedChangeListener(
+                new CompoundButton.OnCheckedChangeListener() {
+                    @Override
+                    public void onCheckedChanged(final CompoundButton buttonView,
+                            final boolean isChecked) {
+                        prefs.edit().putBoolean(Settings.PREF_SHOW_PERFORMANCE_HUD, isChecked)
+                                .apply();
+                    }
+                });
     }
 
     @Override
@@ -16,65 +16,312 @@
 
 package com.github.crvv.wubinput.wubi.utils;
 
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
 import com.github.crvv.wubinput.annotations.UsedForTesting;
 
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Utilities to manage executors.
+ * The background threads of the IME, one executor per lane.
+ *
+ * Each lane has a fixed number of threads running at the lane's priority, so that work on the
+ * typing path gets the CPU before housekeeping does. A task submitted with
+ * {@link Lane#execute(Runnable)} always runs, which one-time work such as a load needs. A task
+ * submitted with {@link Lane#executeDroppable(Runnable)}, or through {@link Lane#getExecutor()},
+ * may be dropped: once the lane's queue holds as many tasks as its capacity, the lane drops a
+ * droppable task, the oldest or the new one depending on what the lane's tasks are for.
+ * Every lane counts its tasks and how long they waited and ran; see {@link Lane#getStats()}.
  */
 public class ExecutorUtils {
-    private static final ConcurrentHashMap<String, ExecutorService> sExecutorMap =
-            new ConcurrentHashMap<>();
+    private static final String TAG = ExecutorUtils.class.getSimpleName();
+
+    /** When the queue is full, drop the droppable task being submitted. */
+    public static final int DROP_NEWEST = 0;
+    /** When the queue is full, drop the droppable task that has waited the longest. */
+    public static final int DROP_OLDEST = 1;
+
+    /**
+     * Loads the dictionaries. Reloads are rare and each one has a caller waiting for it, so loads
+     * are never dropped; only the warm up that follows a load may be.
+     */
+    public static final Lane DICTIONARY_LOAD = new Lane("DictionaryLoad",
+            Process.THREAD_PRIORITY_BACKGROUND, 1 /* threadCount */, 16 /* queueCapacity */,
+            DROP_NEWEST);
+    /**
+     * Reads and writes what the user typed. The reads are never dropped. Each flush writes
+     * everything pending, so a flush that does not fit behind the queued ones has nothing left
+     * to do.
+     */
+    public static final Lane USER_HISTORY = new Lane("UserHistory",
+            Process.THREAD_PRIORITY_BACKGROUND, 1 /* threadCount */, 16 /* queueCapacity */,
+            DROP_NEWEST);
+    /**
+     * Looks up dictionaries while a word is typed. Whoever waits for an old lookup has given up
+     * on it at its deadline, so the oldest one goes first.
+     */
+    public static final Lane DICTIONARY_LOOKUP = new Lane("DictionaryLookup",
+            Process.THREAD_PRIORITY_DEFAULT, 2 /* threadCount */, 8 /* queueCapacity */,
+            DROP_OLDEST);
 
-    private static class ThreadFactoryWithId implements ThreadFactory {
-        private final String mId;
+    /**
+     * Builds the keyboards a layout set may switch to. Each task builds all of them for the
+     * latest layout set, so an older task is dropped. The UI thread may wait for a keyboard
+     * being built here, so it does not run at a background priority.
+     */
+    public static final Lane KEYBOARD_BUILD = new Lane("KeyboardBuild",
+            Process.THREAD_PRIORITY_DEFAULT, 1 /* threadCount */, 2 /* queueCapacity */,
+            DROP_OLDEST);
+
+    // The prefetch of the codes the next letter can make has no lane. It runs on the thread of
+    // InputLogicHandler, behind the requests for suggestions, so it never delays a lookup the
+    // user waits for. The next key stops it there, which a queued task could not do once it runs.
+    private static final Lane[] LANES =
+            { DICTIONARY_LOAD, USER_HISTORY, DICTIONARY_LOOKUP, KEYBOARD_BUILD };
+
+    private ExecutorUtils() {
+        // This utility class is not publicly instantiable.
+    }
 
-        public ThreadFactoryWithId(final String id) {
-            mId = id;
+    /**
+     * The counters of a lane at one point in time. Times are in milliseconds.
+     */
+    public static final class LaneStats {
+        public final String mName;
+        public final int mQueueDepth;
+        public final long mSubmittedCount;
+        public final long mDroppedCount;
+        public final long mCompletedCount;
+        public final long mTotalWaitMillis;
+        public final long mMaxWaitMillis;
+        public final long mTotalRunMillis;
+        public final long mMaxRunMillis;
+
+        LaneStats(final Lane lane) {
+            mName = lane.mName;
+            mQueueDepth = lane.mExecutor.getQueue().size();
+            mSubmittedCount = lane.mSubmittedCount.get();
+            mDroppedCount = lane.mDroppedCount.get();
+            mCompletedCount = lane.mCompletedCount.get();
+            mTotalWaitMillis = lane.mTotalWaitMillis.get();
+            mMaxWaitMillis = lane.mMaxWaitMillis.get();
+            mTotalRunMillis = lane.mTotalRunMillis.get();
+            mMaxRunMillis = lane.mMaxRunMillis.get();
         }
 
         @Override
-        public Thread newThread(final Runnable r) {
-            return new Thread(r, "Executor - " + mId);
+        public String toString() {
+            return mName + ": queued=" + mQueueDepth + " submitted=" + mSubmittedCount
+                    + " dropped=" + mDroppedCount + " completed=" + mCompletedCount
+                    + " wait=" + mTotalWaitMillis + "ms (max " + mMaxWaitMillis + "ms)"
+                    + " run=" + mTotalRunMillis + "ms (max " + mMaxRunMillis + "ms)";
+        }
+    }
+
+    public static final class Lane {
+        private final String mName;
+        private final LaneExecutor mExecutor;
+        private final AtomicLong mSubmittedCount = new AtomicLong();
+        private final AtomicLong mDroppedCount = new AtomicLong();
+        private final AtomicLong mCompletedCount = new AtomicLong();
+        private final AtomicLong mTotalWaitMillis = new AtomicLong();
+        private final AtomicLong mMaxWaitMillis = new AtomicLong();
+        private final AtomicLong mTotalRunMillis = new AtomicLong();
+        private final AtomicLong mMaxRunMillis = new AtomicLong();
+
+        Lane(final String name, final int threadPriority, final int threadCount,
+                final int queueCapacity, final int dropPolicy) {
+            mName = name;
+            mExecutor = new LaneExecutor(this, threadCount, queueCapacity,
+                    new LaneThreadFactory(name, threadPriority), dropPolicy);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * The executor of the lane. Tasks submitted to it are counted in the stats of the lane,
+         * and may be dropped like with {@link #executeDroppable(Runnable)}.
+         */
+        public ExecutorService getExecutor() {
+            return mExecutor;
+        }
+
+        /**
+         * Runs the task, however many tasks are queued.
+         */
+        public void execute(final Runnable task) {
+            mExecutor.executeUndroppable(task);
+        }
+
+        /**
+         * Runs the task, unless the queue is full and the policy of the lane drops it, or it is
+         * dropped later for a newer task.
+         */
+        public void executeDroppable(final Runnable task) {
+            mExecutor.execute(task);
+        }
+
+        public LaneStats getStats() {
+            return new LaneStats(this);
+        }
+
+        void onDropped() {
+            mDroppedCount.incrementAndGet();
+            Log.w(TAG, "Lane " + mName + " is full, dropping a task");
+        }
+
+        void onCompleted(final long waitMillis, final long runMillis) {
+            mCompletedCount.incrementAndGet();
+            mTotalWaitMillis.addAndGet(waitMillis);
+            updateMax(mMaxWaitMillis, waitMillis);
+            mTotalRunMillis.addAndGet(runMillis);
+            updateMax(mMaxRunMillis, runMillis);
+        }
+
+        private static void updateMax(final AtomicLong max, final long value) {
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
         }
     }
 
     /**
-     * Gets the executor for the given id.
+     * @return the stats of every lane.
      */
-    public static ExecutorService getExecutor(final String id) {
-        ExecutorService executor = sExecutorMap.get(id);
-        if (executor == null) {
-            synchronized(sExecutorMap) {
-                executor = sExecutorMap.get(id);
-                if (executor == null) {
-                    executor = Executors.newSingleThreadExecutor(new ThreadFactoryWithId(id));
-                    sExecutorMap.put(id, executor);
+    public static LaneStats[] getAllStats() {
+        final LaneStats[] stats = new LaneStats[LANES.length];
+        for (int i = 0; i < LANES.length; i++) {
+            stats[i] = LANES[i].getStats();
+        }
+        return stats;
+    }
+
+    private static final class LaneThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final int mThreadPriority;
+
+        public LaneThreadFactory(final String name, final int threadPriority) {
+            mName = name;
+            mThreadPriority = threadPriority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(mThreadPriority);
+                    r.run();
+                }
+            }, "Executor - " + mName);
+        }
+    }
+
+    // Remembers when a task was queued, to know how long it waited.
+    private static final class TimedTask implements Runnable {
+        final Runnable mTask;
+        final boolean mIsDroppable;
+        final long mQueuedTime = SystemClock.uptimeMillis();
+
+        TimedTask(final Runnable task, final boolean isDroppable) {
+            mTask = task;
+            mIsDroppable = isDroppable;
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+    }
+
+    // The queue is unbounded so that the tasks that cannot be dropped always fit; the capacity
+    // of the lane is enforced when a droppable task is submitted.
+    private static final class LaneExecutor extends ThreadPoolExecutor {
+        private final Lane mLane;
+        private final int mQueueCapacity;
+        private final int mDropPolicy;
+        // Makes checking the queue size and queuing one step for submitters.
+        private final Object mSubmitLock = new Object();
+        // The start time of the task running on the current thread.
+        private final ThreadLocal<long[]> mStartTime = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[1];
+            }
+        };
+
+        LaneExecutor(final Lane lane, final int threadCount, final int queueCapacity,
+                final ThreadFactory threadFactory, final int dropPolicy) {
+            // Tasks are only rejected once the executor is shut down.
+            super(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), threadFactory,
+                    new ThreadPoolExecutor.DiscardPolicy());
+            mLane = lane;
+            mQueueCapacity = queueCapacity;
+            mDropPolicy = dropPolicy;
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            mLane.mSubmittedCount.incrementAndGet();
+            synchronized (mSubmitLock) {
+                if (getQueue().size() >= mQueueCapacity
+                        && (mDropPolicy == DROP_NEWEST || !removeOldestDroppableTask())) {
+                    mLane.onDropped();
+                    return;
                 }
+                super.execute(new TimedTask(command, true /* isDroppable */));
             }
         }
-        return executor;
+
+        void executeUndroppable(final Runnable command) {
+            mLane.mSubmittedCount.incrementAndGet();
+            super.execute(new TimedTask(command, false /* isDroppable */));
+        }
+
+        // Must be called with mSubmitLock held.
+        private boolean removeOldestDroppableTask() {
+            for (final Runnable task : getQueue()) {
+                // A task taken by a thread meanwhile has made room as well.
+                if (((TimedTask)task).mIsDroppable) {
+                    getQueue().remove(task);
+                    mLane.onDropped();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        protected void beforeExecute(final Thread t, final Runnable r) {
+            mStartTime.get()[0] = SystemClock.uptimeMillis();
+        }
+
+        @Override
+        protected void afterExecute(final Runnable r, final Throwable t) {
+            final long now = SystemClock.uptimeMillis();
+            final long startTime = mStartTime.get()[0];
+            mLane.onCompleted(startTime - ((TimedTask)r).mQueuedTime, now - startTime);
+        }
     }
 
     /**
-     * Shutdowns all executors and removes all executors from the executor map for testing.
+     * Shutdowns all executors for testing.
      */
     @UsedForTesting
     public static void shutdownAllExecutors() {
-        synchronized(sExecutorMap) {
-            for (final ExecutorService executor : sExecutorMap.values()) {
-                executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        executor.shutdown();
-                        sExecutorMap.remove(executor);
-                    }
-                });
-            }
+        for (final Lane lane : LANES) {
+            lane.mExecutor.shutdown();
         }
     }
 }
@@ -0,0 +1,109 @@
+package com.github.crvv.wubinput.wubi.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations that any thread can record into without locking.
+ *
+ * Durations are kept in microseconds, in buckets that split each power of two in four, so a
+ * percentile is off by less than 25%. Recording is two atomic increments and an atomic max.
+ */
+public final class LatencyHistogram {
+    // Values below this are their own bucket.
+    private static final int LINEAR_BUCKET_COUNT = 4;
+    private static final int SUB_BUCKET_BITS = 2;
+    // Enough for anything up to half a minute.
+    private static final int BUCKET_COUNT = 96;
+
+    private final String mName;
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mMaxMicros = new AtomicLong();
+
+    public LatencyHistogram(final String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void recordNanos(final long nanos) {
+        final long micros = Math.max(nanos / 1000, 0);
+        mCounts.incrementAndGet(getBucketIndex(micros));
+        mTotalCount.incrementAndGet();
+        long max = mMaxMicros.get();
+        while (micros > max && !mMaxMicros.compareAndSet(max, micros)) {
+            max = mMaxMicros.get();
+        }
+    }
+
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    public long getMaxMicros() {
+        return mMaxMicros.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the upper bound of the bucket holding the given percentile, in microseconds, or
+     * 0 if nothing was recorded.
+     */
+    public long getPercentileMicros(final double percentile) {
+        // Counts recorded while this runs may or may not be seen, which is fine for a report.
+        final long totalCount = mTotalCount.get();
+        if (totalCount == 0) {
+            return 0;
+        }
+        final long rank = Math.max((long)Math.ceil(totalCount * percentile / 100), 1);
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mCounts.get(i);
+            if (count >= rank) {
+                return Math.min(getBucketLowerBound(i + 1) - 1, mMaxMicros.get());
+            }
+        }
+        return mMaxMicros.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mMaxMicros.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return mName + ": n=" + getCount() + " p50=" + formatMicros(getPercentileMicros(50))
+                + " p90=" + formatMicros(getPercentileMicros(90))
+                + " p99=" + formatMicros(getPercentileMicros(99))
+                + " max=" + formatMicros(getMaxMicros());
+    }
+
+    private static String formatMicros(final long micros) {
+        return (micros / 1000) + "." + (micros % 1000 / 100) + "ms";
+    }
+
+    private static int getBucketIndex(final long micros) {
+        if (micros < LINEAR_BUCKET_COUNT) {
+            return (int)micros;
+        }
+        // The bucket is given by the highest bit and the SUB_BUCKET_BITS bits below it.
+        final int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        final int index = (shift << SUB_BUCKET_BITS) + (int)(micros >> shift);
+        return Math.min(index, BUCKET_COUNT - 1);
+    }
+
+    private static long getBucketLowerBound(final int index) {
+        if (index < LINEAR_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = (index >> SUB_BUCKET_BITS) - 1;
+        return ((long)(index & (LINEAR_BUCKET_COUNT - 1)) + LINEAR_BUCKET_COUNT) << shift;
+    }
+}
@@ -17,9 +17,50 @@
 package com.github.crvv.wubinput.wubi.utils;
 
 import android.content.Context;
+import android.os.SystemClock;
+
+import com.github.crvv.wubinput.wubi.define.ProductionFlags;
 import com.github.crvv.wubinput.wubi.settings.SettingsValues;
 
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traces how long a keystroke takes to show its candidates.
+ *
+ * The stages of a keystroke are timed from the moment the touch down was handled: the input
+ * logic receiving the code, the dictionaries answering, the suggestions reaching the UI thread
+ * and the suggestion strip being laid out. The strip being laid out ends the keystroke, so
+ * updates that no keystroke caused are not counted. When a key is pressed before the previous
+ * keystroke is shown, the stages still pending are timed from the new touch down, which is how
+ * long the user waited for them. Recording is lock-free and can be done from any thread.
+ */
 public final class StatsUtils {
+    private static final long NOT_A_TIME = 0;
+
+    // From the event time of the touch down to the moment it is handled.
+    private static final LatencyHistogram sTouchDispatch = new LatencyHistogram("touch dispatch");
+    // From the touch down to the end of each stage.
+    private static final LatencyHistogram sCodeInput = new LatencyHistogram("code input");
+    private static final LatencyHistogram sLookupDone = new LatencyHistogram("lookup done");
+    private static final LatencyHistogram sDelivered = new LatencyHistogram("delivered");
+    private static final LatencyHistogram sLaidOut = new LatencyHistogram("strip laid out");
+    // How long each dictionary lookup takes, whether a keystroke waits for it or not.
+    private static final LatencyHistogram sLookup = new LatencyHistogram("lookup duration");
+    private static final LatencyHistogram[] HISTOGRAMS = {
+            sTouchDispatch, sCodeInput, sLookupDone, sDelivered, sLaidOut, sLookup };
+
+    // System.nanoTime() when the current keystroke began, or NOT_A_TIME.
+    private static volatile long sKeystrokeStartTime = NOT_A_TIME;
+    private static volatile long sLastLookupNanos;
+    // Whether the suggestions of a keystroke were in memory and shown right away.
+    private static final AtomicLong sSuggestionCacheHitCount = new AtomicLong();
+    private static final AtomicLong sSuggestionCacheMissCount = new AtomicLong();
+
+    private StatsUtils() {
+        // This utility class is not publicly instantiable.
+    }
+
     public static void init(final Context context) {
     }
 
@@ -31,4 +72,101 @@ public final class StatsUtils {
 
     public static void onDestroy() {
     }
+
+    /**
+     * @param eventTime the time of the touch down event, in the SystemClock.uptimeMillis() base.
+     */
+    public static void onTouchDown(final long eventTime) {
+        if (!ProductionFlags.ENABLE_LATENCY_TRACING) return;
+        sKeystrokeStartTime = System.nanoTime();
+        sTouchDispatch.recordNanos((SystemClock.uptimeMillis() - eventTime) * 1000000);
+    }
+
+    public static void onCodeInput() {
+        if (!ProductionFlags.ENABLE_LATENCY_TRACING) return;
+        if (sKeystrokeStartTime == NOT_A_TIME) {
+            // A key that was not touched, such as a hardware key, starts here.
+            sKeystrokeStartTime = System.nanoTime();
+        }
+        recordStage(sCodeInput);
+    }
+
+    /**
+     * @return the value to pass to {@link #onLookupDone(long)}.
+     */
+    public static long onLookupStarted() {
+        return ProductionFlags.ENABLE_LATENCY_TRACING ? System.nanoTime() : NOT_A_TIME;
+    }
+
+    public static void onLookupDone(final long lookupStartTime) {
+        if (!ProductionFlags.ENABLE_LATENCY_TRACING) return;
+        final long lookupNanos = System.nanoTime() - lookupStartTime;
+        sLastLookupNanos = lookupNanos;
+        sLookup.recordNanos(lookupNanos);
+        recordStage(sLookupDone);
+    }
+
+    public static void onSuggestionCacheLookup(final boolean isHit) {
+        if (!ProductionFlags.ENABLE_LATENCY_TRACING) return;
+        (isHit ? sSuggestionCacheHitCount : sSuggestionCacheMissCount).incrementAndGet();
+    }
+
+    public static void onSuggestionsDelivered() {
+        if (!ProductionFlags.ENABLE_LATENCY_TRACING) return;
+        recordStage(sDelivered);
+    }
+
+    public static void onSuggestionStripLaidOut() {
+        if (!ProductionFlags.ENABLE_LATENCY_TRACING) return;
+        recordStage(sLaidOut);
+        sKeystrokeStartTime = NOT_A_TIME;
+    }
+
+    private static void recordStage(final LatencyHistogram histogram) {
+        final long startTime = sKeystrokeStartTime;
+        if (startTime != NOT_A_TIME) {
+            histogram.recordNanos(System.nanoTime() - startTime);
+        }
+    }
+
+    public static long getLastLookupMicros() {
+        return sLastLookupNanos / 1000;
+    }
+
+    /**
+     * @return the share of the suggestion updates that were answered from memory, 0 to 100, or
+     * -1 if there was none.
+     */
+    public static int getSuggestionCacheHitPercent() {
+        final long hitCount = sSuggestionCacheHitCount.get();
+        final long totalCount = hitCount + sSuggestionCacheMissCount.get();
+        return totalCount == 0 ? -1 : (int)(hitCount * 100 / totalCount);
+    }
+
+    /**
+     * @return the histograms, in the order of the stages.
+     */
+    public static LatencyHistogram[] getLatencyHistograms() {
+        return HISTOGRAMS;
+    }
+
+    public static void resetLatencyHistograms() {
+        for (final LatencyHistogram histogram : HISTOGRAMS) {
+            histogram.reset();
+        }
+        sSuggestionCacheHitCount.set(0);
+        sSuggestionCacheMissCount.set(0);
+    }
+
+    public static void dump(final PrintWriter pw) {
+        pw.println("Keystroke latency:");
+        if (!ProductionFlags.ENABLE_LATENCY_TRACING) {
+            pw.println("  disabled");
+            return;
+        }
+        for (final LatencyHistogram histogram : HISTOGRAMS) {
+            pw.println("  " + histogram);
+        }
+        pw.println("  suggestion cache hits: " + getSuggestionCacheHitPercent() + "%");
+    }
 }
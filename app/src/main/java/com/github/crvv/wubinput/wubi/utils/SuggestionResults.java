@@ -19,35 +19,50 @@ package com.github.crvv.wubinput.wubi.utils;
 import com.github.crvv.wubinput.wubi.dictionary.SuggestedWords.SuggestedWordInfo;
 import com.github.crvv.wubinput.wubi.define.ProductionFlags;
 
+import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
-import java.util.TreeSet;
+import java.util.NoSuchElementException;
 
 /**
- * A TreeSet of SuggestedWordInfo that is bounded in size and throws everything that's smaller
- * than its limit
+ * The best SuggestedWordInfo added to it, up to its capacity, sorted from the best. Anything
+ * that ranks after the last of a full set is thrown away.
+ *
+ * The words are kept in an array of fixed size, and a word is inserted by moving the worse ones
+ * down, so adding does not allocate. An instance can be reused for another request after
+ * {@link #reset}. Not thread-safe.
  */
-public final class SuggestionResults extends TreeSet<SuggestedWordInfo> {
-    public final Locale mLocale;
-    public final ArrayList<SuggestedWordInfo> mRawSuggestions;
+public final class SuggestionResults extends AbstractCollection<SuggestedWordInfo> {
+    // Set by reset().
+    public Locale mLocale;
+    public ArrayList<SuggestedWordInfo> mRawSuggestions;
     // TODO: Instead of a boolean , we may want to include the context of this suggestion results,
     // such as {@link PrevWordsInfo}.
-    public final boolean mIsBeginningOfSentence;
-    private final int mCapacity;
+    public boolean mIsBeginningOfSentence;
+    private final SuggestedWordInfo[] mSuggestions;
+    private int mSize;
 
     public SuggestionResults(final Locale locale, final int capacity,
             final boolean isBeginningOfSentence) {
-        this(locale, sSuggestedWordInfoComparator, capacity, isBeginningOfSentence);
+        mSuggestions = new SuggestedWordInfo[capacity];
+        reset(locale, isBeginningOfSentence);
     }
 
-    private SuggestionResults(final Locale locale, final Comparator<SuggestedWordInfo> comparator,
-            final int capacity, final boolean isBeginningOfSentence) {
-        super(comparator);
+    /**
+     * Empties the results to reuse them for another request.
+     */
+    public void reset(final Locale locale, final boolean isBeginningOfSentence) {
+        // Do not keep the words of the last request alive.
+        Arrays.fill(mSuggestions, 0, mSize, null);
+        mSize = 0;
         mLocale = locale;
-        mCapacity = capacity;
         if (ProductionFlags.INCLUDE_RAW_SUGGESTIONS) {
+            // The list goes out with the SuggestedWords, so it can not be reused.
             mRawSuggestions = new ArrayList<>();
         } else {
             mRawSuggestions = null;
@@ -55,19 +70,112 @@ public final class SuggestionResults extends TreeSet<SuggestedWordInfo> {
         mIsBeginningOfSentence = isBeginningOfSentence;
     }
 
+    /**
+     * Adds the word unless it ranks after all the words of a full set or an equal word is
+     * already there.
+     * @return whether the word was added.
+     */
     @Override
     public boolean add(final SuggestedWordInfo e) {
-        if (size() < mCapacity) return super.add(e);
-        if (comparator().compare(e, last()) > 0) return false;
-        super.add(e);
-        pollLast(); // removes the last element
+        // The position of the first word that ranks after e.
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final int comparison = sSuggestedWordInfoComparator.compare(mSuggestions[mid], e);
+            if (comparison == 0) {
+                return false;
+            }
+            if (comparison < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        final int capacity = mSuggestions.length;
+        if (low == capacity) {
+            return false;
+        }
+        final int moveCount = Math.min(mSize, capacity - 1) - low;
+        System.arraycopy(mSuggestions, low, mSuggestions, low + 1, moveCount);
+        mSuggestions[low] = e;
+        mSize = Math.min(mSize + 1, capacity);
         return true;
     }
 
     @Override
     public boolean addAll(final Collection<? extends SuggestedWordInfo> e) {
         if (null == e) return false;
-        return super.addAll(e);
+        if (!(e instanceof List)) {
+            return super.addAll(e);
+        }
+        // Indexed, so that no iterator is allocated.
+        final List<? extends SuggestedWordInfo> list = (List<? extends SuggestedWordInfo>) e;
+        boolean modified = false;
+        for (int i = 0; i < list.size(); i++) {
+            modified |= add(list.get(i));
+        }
+        return modified;
+    }
+
+    /**
+     * @return the best word.
+     * @throws NoSuchElementException if there is none.
+     */
+    public SuggestedWordInfo first() {
+        if (mSize == 0) {
+            throw new NoSuchElementException();
+        }
+        return mSuggestions[0];
+    }
+
+    public SuggestedWordInfo get(final int index) {
+        if (index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+        }
+        return mSuggestions[index];
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(mSuggestions, 0, mSize, null);
+        mSize = 0;
+    }
+
+    // Copying the results out, as new ArrayList<>(results) does, is a single array copy.
+    @Override
+    public Object[] toArray() {
+        return Arrays.copyOf(mSuggestions, mSize, Object[].class);
+    }
+
+    @Override
+    public Iterator<SuggestedWordInfo> iterator() {
+        return new Iterator<SuggestedWordInfo>() {
+            private int mIndex;
+
+            @Override
+            public boolean hasNext() {
+                return mIndex < mSize;
+            }
+
+            @Override
+            public SuggestedWordInfo next() {
+                if (mIndex >= mSize) {
+                    throw new NoSuchElementException();
+                }
+                return mSuggestions[mIndex++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     private static final class SuggestedWordInfoComparator
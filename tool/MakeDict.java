@@ -0,0 +1,335 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compiles tool/wubi.txt into the binary dictionary read by WubiDictionary.
+ *
+ * Usage: java MakeDict wubi.txt wubi.dict
+ *
+ * Each line of wubi.txt is a code followed by its words. A word may be written as word:frequency,
+ * with a frequency from 0 to 255. Otherwise its frequency comes from its position: the first word
+ * of a code gets 255, the next one 254, and so on. The words of each code are stored from the
+ * most to the least frequent. The frequencies themselves are not stored: the app ranks the words
+ * by their order.
+ *
+ * The dictionary has no word pairs, so the words that may follow a committed word are taken from
+ * its phrases: every phrase that starts with another word of the dictionary is a successor of that
+ * word. The successors of a word are ranked by frequency, then shorter phrases first, then in code
+ * order, and only the first MAX_ASSOCIATIONS_PER_WORD are kept.
+ *
+ * The layout must be kept in sync with FormatSpec in the app.
+ */
+public class MakeDict {
+    private static final int MAGIC_NUMBER = 0x57554249; // "WUBI"
+    private static final int VERSION = 6;
+    private static final int HEADER_SIZE = 56;
+    private static final int INT_SIZE = 4;
+    private static final int MAX_CODE_LENGTH = 4;
+    private static final int BITS_PER_LETTER = 5;
+    private static final int LETTER_MASK = (1 << BITS_PER_LETTER) - 1;
+    private static final int PREFIX_RADIX = 27;
+    private static final int WILDCARD_LETTER_VALUE = 'z' - 'a' + 1;
+    private static final int PREFIX_COUNT =
+            PREFIX_RADIX * PREFIX_RADIX * PREFIX_RADIX * PREFIX_RADIX;
+    private static final int PREFIX_BITMAP_SIZE = (PREFIX_COUNT + 7) / 8;
+    private static final int MAX_FREQUENCY = 255;
+    private static final char FREQUENCY_SEPARATOR = ':';
+    private static final int MAX_ASSOCIATIONS_PER_WORD = 10;
+
+    private static final class Word {
+        final String mWord;
+        final int mFrequency;
+        // Index in the word table, set once the words are sorted.
+        int mIndex;
+
+        Word(final String word, final int frequency) {
+            mWord = word;
+            mFrequency = frequency;
+        }
+    }
+
+    private static final Comparator<Word> BY_ASSOCIATION_RANK = new Comparator<Word>() {
+        @Override
+        public int compare(final Word a, final Word b) {
+            if (a.mFrequency != b.mFrequency) {
+                return b.mFrequency - a.mFrequency;
+            }
+            if (a.mWord.length() != b.mWord.length()) {
+                return a.mWord.length() - b.mWord.length();
+            }
+            return a.mIndex - b.mIndex;
+        }
+    };
+
+    private static final Comparator<byte[]> BY_UNSIGNED_BYTES = new Comparator<byte[]>() {
+        @Override
+        public int compare(final byte[] a, final byte[] b) {
+            final int length = Math.min(a.length, b.length);
+            for (int i = 0; i < length; i++) {
+                if (a[i] != b[i]) {
+                    return (a[i] & 0xFF) - (b[i] & 0xFF);
+                }
+            }
+            return a.length - b.length;
+        }
+    };
+
+    // Stable, so that words of the same frequency keep their order in wubi.txt.
+    private static final Comparator<Word> BY_FREQUENCY = new Comparator<Word>() {
+        @Override
+        public int compare(final Word a, final Word b) {
+            return b.mFrequency - a.mFrequency;
+        }
+    };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java MakeDict <wubi.txt> <wubi.dict>");
+            System.exit(1);
+        }
+        // TreeMap on packed codes gives the same order as sorting the code strings.
+        final TreeMap<Integer, List<Word>> words = new TreeMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(args[0]), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.trim().split("\\s+");
+                if (fields.length < 2) continue;
+                final int code = packCode(fields[0]);
+                List<Word> list = words.get(code);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    words.put(code, list);
+                }
+                for (int i = 1; i < fields.length; i++) {
+                    list.add(parseWord(fields[i], list.size()));
+                }
+            }
+        }
+        for (final List<Word> list : words.values()) {
+            Collections.sort(list, BY_FREQUENCY);
+        }
+
+        final ByteArrayOutputStream codes = new ByteArrayOutputStream();
+        final ByteArrayOutputStream codeStarts = new ByteArrayOutputStream();
+        final ByteArrayOutputStream wordOffsets = new ByteArrayOutputStream();
+        final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        final DataOutputStream codesOut = new DataOutputStream(codes);
+        final DataOutputStream codeStartsOut = new DataOutputStream(codeStarts);
+        final DataOutputStream wordOffsetsOut = new DataOutputStream(wordOffsets);
+        int wordCount = 0;
+        for (final Map.Entry<Integer, List<Word>> entry : words.entrySet()) {
+            codesOut.writeInt(entry.getKey());
+            codeStartsOut.writeInt(wordCount);
+            for (final Word word : entry.getValue()) {
+                wordOffsetsOut.writeInt(pool.size());
+                pool.write(word.mWord.getBytes(StandardCharsets.UTF_8));
+                word.mIndex = wordCount;
+                wordCount++;
+            }
+        }
+        codeStartsOut.writeInt(wordCount);
+        wordOffsetsOut.writeInt(pool.size());
+
+        final byte[] prefixBitmap = new byte[PREFIX_BITMAP_SIZE];
+        // Number of words matched by each full-length code, 'z' included.
+        final int[] fullCodeWordCounts = new int[PREFIX_COUNT];
+        for (final Map.Entry<Integer, List<Word>> entry : words.entrySet()) {
+            addPrefixes(entry.getKey(), entry.getValue().size(), prefixBitmap,
+                    fullCodeWordCounts);
+        }
+        final byte[] uniqueCodeBitmap = new byte[PREFIX_BITMAP_SIZE];
+        for (int index = 0; index < PREFIX_COUNT; index++) {
+            if (fullCodeWordCounts[index] == 1) {
+                setBit(uniqueCodeBitmap, index);
+            }
+        }
+
+        final ByteArrayOutputStream associationKeys = new ByteArrayOutputStream();
+        final ByteArrayOutputStream associationStarts = new ByteArrayOutputStream();
+        final ByteArrayOutputStream associations = new ByteArrayOutputStream();
+        final int associationKeyCount = buildAssociations(words,
+                new DataOutputStream(associationKeys), new DataOutputStream(associationStarts),
+                new DataOutputStream(associations));
+
+        final int codeCount = words.size();
+        final int codeTableOffset = HEADER_SIZE;
+        final int wordTableOffset = codeTableOffset + codes.size() + codeStarts.size();
+        final int wordPoolOffset = wordTableOffset + wordOffsets.size();
+        final int prefixBitmapOffset = wordPoolOffset + pool.size();
+        final int uniqueCodeBitmapOffset = prefixBitmapOffset + PREFIX_BITMAP_SIZE;
+        final int uniqueCodeBitmapEnd = uniqueCodeBitmapOffset + PREFIX_BITMAP_SIZE;
+        // The pool and the bitmaps are bytes; keep the int tables after them aligned.
+        final int uniqueCodeBitmapPadding =
+                (INT_SIZE - uniqueCodeBitmapEnd % INT_SIZE) % INT_SIZE;
+        final int associationKeyTableOffset = uniqueCodeBitmapEnd + uniqueCodeBitmapPadding;
+        final int associationStartTableOffset =
+                associationKeyTableOffset + associationKeys.size();
+        final int associationTableOffset =
+                associationStartTableOffset + associationStarts.size();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(args[1]))) {
+            out.writeInt(MAGIC_NUMBER);
+            out.writeInt(VERSION);
+            out.writeInt(codeCount);
+            out.writeInt(wordCount);
+            out.writeInt(codeTableOffset);
+            out.writeInt(wordTableOffset);
+            out.writeInt(wordPoolOffset);
+            out.writeInt(pool.size());
+            out.writeInt(prefixBitmapOffset);
+            out.writeInt(uniqueCodeBitmapOffset);
+            out.writeInt(associationKeyCount);
+            out.writeInt(associationKeyTableOffset);
+            out.writeInt(associationStartTableOffset);
+            out.writeInt(associationTableOffset);
+            codes.writeTo(out);
+            codeStarts.writeTo(out);
+            wordOffsets.writeTo(out);
+            pool.writeTo(out);
+            out.write(prefixBitmap);
+            out.write(uniqueCodeBitmap);
+            out.write(new byte[uniqueCodeBitmapPadding]);
+            associationKeys.writeTo(out);
+            associationStarts.writeTo(out);
+            associations.writeTo(out);
+        }
+        System.out.println(codeCount + " codes, " + wordCount + " words, "
+                + associationKeyCount + " words with successors");
+    }
+
+    // Writes the words that have successors, sorted by their UTF-8 bytes, the index of the first
+    // successor of each of them (one more int for the end), and the successors. Words and
+    // successors are written as the index of their first occurrence in the word table.
+    private static int buildAssociations(final TreeMap<Integer, List<Word>> words,
+            final DataOutputStream keysOut, final DataOutputStream startsOut,
+            final DataOutputStream associationsOut) throws IOException {
+        // A word listed under several codes is kept once, with its highest frequency.
+        final HashMap<String, Word> uniqueWords = new HashMap<>();
+        for (final List<Word> list : words.values()) {
+            for (final Word word : list) {
+                final Word previous = uniqueWords.get(word.mWord);
+                if (previous == null || previous.mFrequency < word.mFrequency) {
+                    final Word merged = new Word(word.mWord, word.mFrequency);
+                    merged.mIndex = previous == null ? word.mIndex : previous.mIndex;
+                    uniqueWords.put(word.mWord, merged);
+                }
+            }
+        }
+        final TreeMap<byte[], List<Word>> successors = new TreeMap<>(BY_UNSIGNED_BYTES);
+        final HashMap<String, byte[]> keyBytes = new HashMap<>();
+        for (final Word phrase : uniqueWords.values()) {
+            final String text = phrase.mWord;
+            for (int end = text.offsetByCodePoints(0, 1); end < text.length();
+                    end = text.offsetByCodePoints(end, 1)) {
+                final String prefix = text.substring(0, end);
+                if (!uniqueWords.containsKey(prefix)) continue;
+                byte[] key = keyBytes.get(prefix);
+                if (key == null) {
+                    key = prefix.getBytes(StandardCharsets.UTF_8);
+                    keyBytes.put(prefix, key);
+                }
+                List<Word> list = successors.get(key);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    successors.put(key, list);
+                }
+                list.add(phrase);
+            }
+        }
+        int associationCount = 0;
+        for (final Map.Entry<byte[], List<Word>> entry : successors.entrySet()) {
+            final String key = new String(entry.getKey(), StandardCharsets.UTF_8);
+            final List<Word> list = entry.getValue();
+            Collections.sort(list, BY_ASSOCIATION_RANK);
+            keysOut.writeInt(uniqueWords.get(key).mIndex);
+            startsOut.writeInt(associationCount);
+            for (int i = 0; i < list.size() && i < MAX_ASSOCIATIONS_PER_WORD; i++) {
+                associationsOut.writeInt(list.get(i).mIndex);
+                associationCount++;
+            }
+        }
+        startsOut.writeInt(associationCount);
+        return successors.size();
+    }
+
+    private static Word parseWord(final String field, final int position) {
+        final int separatorIndex = field.lastIndexOf(FREQUENCY_SEPARATOR);
+        if (separatorIndex <= 0) {
+            return new Word(field, Math.max(MAX_FREQUENCY - position, 0));
+        }
+        final int frequency = Integer.parseInt(field.substring(separatorIndex + 1));
+        if (frequency < 0 || frequency > MAX_FREQUENCY) {
+            throw new IllegalArgumentException("Bad frequency: " + field);
+        }
+        return new Word(field.substring(0, separatorIndex), frequency);
+    }
+
+    // Sets the bit of every prefix of the code, and of every way of replacing letters of that
+    // prefix by the wildcard 'z', as a prefix with 'z' in it matches any letter there. The words
+    // of a full-length code are also counted for each such way of typing the whole code.
+    private static void addPrefixes(final int packedCode, final int wordCount,
+            final byte[] prefixBitmap, final int[] fullCodeWordCounts) {
+        final int[] letters = new int[MAX_CODE_LENGTH];
+        int length = 0;
+        while (length < MAX_CODE_LENGTH) {
+            final int letter = (packedCode >> (BITS_PER_LETTER * (MAX_CODE_LENGTH - 1 - length)))
+                    & LETTER_MASK;
+            if (letter == 0) break;
+            letters[length++] = letter;
+        }
+        for (int prefixLength = 1; prefixLength <= length; prefixLength++) {
+            for (int wildcards = 0; wildcards < 1 << prefixLength; wildcards++) {
+                int index = 0;
+                for (int i = 0; i < MAX_CODE_LENGTH; i++) {
+                    final int letter;
+                    if (i >= prefixLength) {
+                        letter = 0;
+                    } else if ((wildcards & (1 << i)) != 0) {
+                        letter = WILDCARD_LETTER_VALUE;
+                    } else {
+                        letter = letters[i];
+                    }
+                    index = index * PREFIX_RADIX + letter;
+                }
+                setBit(prefixBitmap, index);
+                if (prefixLength == MAX_CODE_LENGTH) {
+                    fullCodeWordCounts[index] += wordCount;
+                }
+            }
+        }
+    }
+
+    private static void setBit(final byte[] bitmap, final int index) {
+        bitmap[index >> 3] |= 1 << (index & 7);
+    }
+
+    // Letters are stored as 1..26 from the most significant end, so that a shorter code sorts
+    // before every longer code it is a prefix of.
+    private static int packCode(final String code) {
+        if (code.isEmpty() || code.length() > MAX_CODE_LENGTH) {
+            throw new IllegalArgumentException("Bad code: " + code);
+        }
+        int packed = 0;
+        for (int i = 0; i < code.length(); i++) {
+            final char c = code.charAt(i);
+            if (c < 'a' || c > 'z') {
+                throw new IllegalArgumentException("Bad code: " + code);
+            }
+            packed |= (c - 'a' + 1) << (BITS_PER_LETTER * (MAX_CODE_LENGTH - 1 - i));
+        }
+        return packed;
+    }
+}
@@ -1,8 +1,8 @@
 #!/bin/bash
 
 DIR=`cd \`dirname "${BASH_SOURCE[0]}"\` && pwd`
+BUILD_DIR=`mktemp -d`
+trap "rm -rf $BUILD_DIR" EXIT
 
-awk "BEGIN { prefix = \"('\"; print \"INSERT INTO wubi_words (code, word) VALUES\" }
-{ for (i = 2; i <= NF; i++) { print prefix \$1 \"','\" \$i \"')\"; prefix = \",('\" } }" \
-    $DIR/wubi.txt > $DIR/../app/src/main/res/raw/wubi.sql
-
+javac -d $BUILD_DIR $DIR/MakeDict.java && \
+    java -cp $BUILD_DIR MakeDict $DIR/wubi.txt $DIR/../app/src/main/res/raw/wubi.dict